@@ -0,0 +1,563 @@
+package com.wapitia.common;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongBiFunction;
+
+/** A thread-safe, size or weight bounded, memoizing cache with the same
+ *  "get it or create it" use as {@link Collections#getOrCreateMapValue},
+ *  for long-running services where a plain Map would grow without bound.
+ *  <p>
+ *  When the total weight of the entries exceeds the bound, entries are
+ *  evicted by the {@link Eviction} policy. Entries may also expire a fixed
+ *  time after they were written. Concurrent misses on one key are
+ *  single-flight: the value is created once and the other callers wait
+ *  for it. Hit, miss and eviction counts are available from {@link #stats()}.
+ *  <p>
+ *  Lookups never wait for a lock. A hit is noted in a small buffer, which
+ *  is replayed onto the recency order by whichever thread next gets the
+ *  eviction lock uncontended. If the buffer is full the hit is not noted,
+ *  so under heavy load the recency order is approximate.
+ *
+ *  <p>Usage:
+ *  <pre>{@code
+ *    BoundedCache<String,Account> accounts = new BoundedCache<>(10000);
+ *    Account account = accounts.getOrCreate(id, accountDao::load);
+ *  }</pre>
+ *
+ *  @param <K> key type
+ *  @param <V> value type
+ */
+public class BoundedCache<K,V> {
+
+    /** How entries are chosen for eviction when the cache is over its bound. */
+    public enum Eviction {
+        /** Evict the least recently used entry. */
+        LRU,
+        /** As LRU, but a newly created entry is only kept in place of the
+         *  least recently used one if its key has been asked for more often,
+         *  so that one-off keys do not flush out popular ones.
+         */
+        FREQUENCY
+    }
+
+    private final long maxWeight;
+    private final ToLongBiFunction<? super K,? super V> weigher;
+    private final long expireNanos;
+    private final LongSupplier ticker;
+
+    private final ConcurrentMap<K,Node<K,V>> map = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // guards the recency list, totalWeight, sketch and draining readBuffer
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final ReadBuffer<K,V> readBuffer = new ReadBuffer<>();
+
+    // var, recency list of loaded entries; head is most recently used
+    private Node<K,V> head;
+    private Node<K,V> tail;
+    private long totalWeight;
+
+    /** Create an LRU cache of at most {@code maxSize} entries, which never expire.
+     *
+     *  @param maxSize maximum number of entries, at least 1
+     */
+    public BoundedCache(long maxSize) {
+        this(maxSize, (k, v) -> 1L, Eviction.LRU, null);
+    }
+
+    /** Create a cache bounded by total entry weight.
+     *
+     *  @param maxWeight maximum total weight of entries, at least 1
+     *  @param weigher weight of an entry, not negative. Use {@code (k, v) -> 1}
+     *         to bound the number of entries.
+     *  @param eviction eviction policy
+     *  @param expireAfterWrite entries are dropped this long after creation,
+     *         or never if null
+     */
+    public BoundedCache(long maxWeight, ToLongBiFunction<? super K,? super V> weigher,
+            Eviction eviction, Duration expireAfterWrite) {
+        this(maxWeight, weigher, eviction, expireAfterWrite, System::nanoTime);
+    }
+
+    /** As the public constructor, with a source of nanosecond time for tests. */
+    BoundedCache(long maxWeight, ToLongBiFunction<? super K,? super V> weigher,
+            Eviction eviction, Duration expireAfterWrite, LongSupplier ticker) {
+        if (maxWeight < 1)
+            throw new IllegalArgumentException("maxWeight must be at least 1");
+        this.maxWeight = maxWeight;
+        this.weigher = Objects.requireNonNull(weigher);
+        this.expireNanos = expireAfterWrite == null ? Long.MAX_VALUE : expireAfterWrite.toNanos();
+        this.ticker = ticker;
+        this.sketch = Objects.requireNonNull(eviction) == Eviction.FREQUENCY
+            ? new FrequencySketch()
+            : null;
+    }
+
+    /** Get the cached value for the key, or create it with the value
+     *  provider, cache it and return it. While one thread creates the value
+     *  for a key, other threads asking for the same key wait for that value
+     *  rather than creating their own.
+     *  <p>
+     *  If the provider throws, nothing is cached and the exception is
+     *  thrown to the creating caller and to all callers waiting on it.
+     *
+     *  @param key the key, must not be null
+     *  @param valueProvider function taking a key to create its value, which
+     *         must not be null
+     *  @return the cached or newly created value
+     */
+    public V getOrCreate(K key, Function<? super K,? extends V> valueProvider) {
+        Objects.requireNonNull(valueProvider);
+        while (true) {
+            final Node<K,V> node = map.get(key);
+            if (node != null) {
+                if (!isExpired(node)) {
+                    hits.increment();
+                    recordAccess(node);
+                    return await(node);
+                }
+                // expired, replace it with a fresh load
+                final Node<K,V> fresh = new Node<>(key);
+                if (map.replace(key, node, fresh)) {
+                    discard(node);
+                    return load(fresh, valueProvider);
+                }
+            } else {
+                final Node<K,V> fresh = new Node<>(key);
+                if (map.putIfAbsent(key, fresh) == null)
+                    return load(fresh, valueProvider);
+            }
+            // lost a race with another thread, look again
+        }
+    }
+
+    /** Return Some cached value for the key, or None if it is not cached,
+     *  has expired, or is still being created.
+     *
+     *  @param key the key
+     *  @return the cached value, if any
+     */
+    public Optional<V> getIfPresent(K key) {
+        final Node<K,V> node = map.get(key);
+        final Optional<V> result;
+        if (node == null || isExpired(node) || !node.future.isDone()
+                || node.future.isCompletedExceptionally()) {
+            misses.increment();
+            result = Optional.empty();
+        } else {
+            hits.increment();
+            recordAccess(node);
+            result = Optional.ofNullable(node.future.getNow(null));
+        }
+        return result;
+    }
+
+    /** Remove the key's entry, if any.
+     *
+     *  @param key the key
+     */
+    public void invalidate(K key) {
+        final Node<K,V> node = map.remove(key);
+        if (node != null)
+            discard(node);
+    }
+
+    /** Remove all entries. Statistics are kept. */
+    public void invalidateAll() {
+        for (K key: map.keySet())
+            invalidate(key);
+    }
+
+    /** Drop all expired entries now, rather than as they are next asked for. */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            drainReads();
+        } finally {
+            evictionLock.unlock();
+        }
+        for (Node<K,V> node: map.values())
+            if (node.future.isDone() && isExpired(node) && map.remove(node.key, node))
+                discard(node);
+    }
+
+    /** @return the number of entries, including those still being created */
+    public long size() {
+        return map.size();
+    }
+
+    /** @return the total weight of the loaded entries */
+    public long weight() {
+        evictionLock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** @return a snapshot of the hit, miss and eviction counts */
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    /** Immutable snapshot of cache statistics. */
+    public static class Stats {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+
+        Stats(long hitCount, long missCount, long evictionCount) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+        }
+
+        /** @return number of lookups that found a cached or in-flight value */
+        public long hitCount() {
+            return hitCount;
+        }
+
+        /** @return number of lookups that had to create the value */
+        public long missCount() {
+            return missCount;
+        }
+
+        /** @return number of entries evicted to keep within the bound.
+         *  Expired and invalidated entries are not counted.
+         */
+        public long evictionCount() {
+            return evictionCount;
+        }
+
+        /** @return hits as a fraction of all lookups, 1.0 if there were none */
+        public double hitRate() {
+            final long total = hitCount + missCount;
+            return total == 0 ? 1.0 : (double) hitCount / total;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[hits=" + hitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + "]";
+        }
+    }
+
+    /** Create the value of a node this thread has installed in the map. */
+    private V load(Node<K,V> node, Function<? super K,? extends V> valueProvider) {
+        misses.increment();
+        final V value;
+        try {
+            value = valueProvider.apply(node.key);
+            node.weight = weigher.applyAsLong(node.key, value);
+        } catch (RuntimeException | Error e) {
+            map.remove(node.key, node);
+            node.future.completeExceptionally(e);
+            throw e;
+        }
+        node.writeNanos = ticker.getAsLong();
+        node.future.complete(value);
+        evictionLock.lock();
+        try {
+            // bring the recency order up to date before choosing victims
+            drainReads();
+            if (sketch != null) {
+                // sized by entries, not weight, which may be in bytes
+                sketch.ensureCapacity(map.size());
+                sketch.increment(node.key);
+            }
+            // it may have been invalidated while loading
+            if (map.get(node.key) == node) {
+                linkFirst(node);
+                totalWeight += node.weight;
+                evict(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return value;
+    }
+
+    /** Wait for a node's value, rethrowing the creator's failure. */
+    private V await(Node<K,V> node) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return node.future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw (RuntimeException) cause;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isExpired(Node<K,V> node) {
+        return expireNanos != Long.MAX_VALUE && node.future.isDone()
+            && ticker.getAsLong() - node.writeNanos >= expireNanos;
+    }
+
+    /** Note a hit in the read buffer, and replay the buffer if it is
+     *  filling up and no other thread holds the eviction lock.
+     */
+    private void recordAccess(Node<K,V> node) {
+        if (readBuffer.offer(node) && evictionLock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /** Replay buffered hits onto the sketch and recency list. Caller holds
+     *  the eviction lock.
+     */
+    private void drainReads() {
+        Node<K,V> node;
+        while ((node = readBuffer.poll()) != null) {
+            if (sketch != null)
+                sketch.increment(node.key);
+            // it may have been evicted or discarded since the hit
+            if (node.linked && node != head) {
+                unlink(node);
+                linkFirst(node);
+            }
+        }
+    }
+
+    /** Forget a node that has been removed from the map. */
+    private void discard(Node<K,V> node) {
+        evictionLock.lock();
+        try {
+            if (node.linked) {
+                unlink(node);
+                totalWeight -= node.weight;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Evict entries until within the bound. Caller holds the eviction lock.
+     *
+     *  @param candidate the entry just added
+     */
+    private void evict(Node<K,V> candidate) {
+        while (totalWeight > maxWeight && tail != null) {
+            Node<K,V> victim = tail;
+            if (sketch != null && candidate.linked && candidate != victim
+                    && sketch.frequency(candidate.key) <= sketch.frequency(victim.key))
+                victim = candidate;
+            unlink(victim);
+            totalWeight -= victim.weight;
+            map.remove(victim.key, victim);
+            evictions.increment();
+        }
+    }
+
+    private void linkFirst(Node<K,V> node) {
+        node.prev = null;
+        node.next = head;
+        if (head != null)
+            head.prev = node;
+        head = node;
+        if (tail == null)
+            tail = node;
+        node.linked = true;
+    }
+
+    private void unlink(Node<K,V> node) {
+        if (node.prev != null)
+            node.prev.next = node.next;
+        else
+            head = node.next;
+        if (node.next != null)
+            node.next.prev = node.prev;
+        else
+            tail = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+    }
+
+    /** A cache entry, whose value may still be being created. */
+    private static class Node<K,V> {
+
+        final K key;
+        final CompletableFuture<V> future = new CompletableFuture<>();
+
+        // var, set before the future completes
+        volatile long writeNanos;
+        long weight;
+
+        // var, recency list links, guarded by the eviction lock
+        Node<K,V> prev;
+        Node<K,V> next;
+        boolean linked;
+
+        Node(K key) {
+            this.key = key;
+        }
+    }
+
+    /** A lossy, bounded buffer of hit nodes. Any thread may offer, without
+     *  blocking; a hit that finds the buffer full or loses a race for a slot
+     *  is dropped. Only the holder of the eviction lock polls.
+     */
+    static class ReadBuffer<K,V> {
+
+        static final int SIZE = 64;
+        private static final int MASK = SIZE - 1;
+        // offer asks for a drain once this many hits are waiting
+        private static final int DRAIN_THRESHOLD = SIZE / 4;
+
+        private final AtomicReferenceArray<Node<K,V>> slots = new AtomicReferenceArray<>(SIZE);
+        private final AtomicLong writes = new AtomicLong();
+
+        // var, advanced only by the draining thread
+        private volatile long reads;
+
+        /** Add a hit, unless the buffer is full or another thread got the slot.
+         *
+         *  @param node the node hit
+         *  @return true if enough hits are waiting that the caller should drain
+         */
+        boolean offer(Node<K,V> node) {
+            final long w = writes.get();
+            final long pending = w - reads;
+            if (pending < SIZE && writes.compareAndSet(w, w + 1))
+                slots.lazySet((int) w & MASK, node);
+            return pending >= DRAIN_THRESHOLD;
+        }
+
+        /** @return the oldest waiting hit, or null if none, or if the next
+         *  one's slot has been claimed but not yet filled
+         */
+        Node<K,V> poll() {
+            final long r = reads;
+            if (r == writes.get())
+                return null;
+            final int index = (int) r & MASK;
+            final Node<K,V> result = slots.get(index);
+            if (result != null) {
+                slots.lazySet(index, null);
+                reads = r + 1;
+            }
+            return result;
+        }
+    }
+
+    /** Approximate access counts per key in little memory: a count-min
+     *  sketch of four rows of 4-bit counters, packed sixteen to a long, all
+     *  halved periodically so that old popularity fades. Each row is as wide
+     *  as the number of entries, rounded up to a power of two, so the sketch
+     *  costs about two bytes per entry and grows with the cache.
+     */
+    static class FrequencySketch {
+
+        private static final int ROWS = 4;
+        private static final int MIN_WIDTH = 16;
+        private static final int MAX_WIDTH = 1 << 26;
+        private static final long MAX_COUNT = 15L;
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        // var, replaced as the cache grows
+        private long[] table;
+        private int width;
+        private int sampleSize;
+        private int additions;
+
+        FrequencySketch() {
+            resize(MIN_WIDTH);
+        }
+
+        /** Widen the sketch to suit this many entries. Widening forgets all
+         *  counts, which happens only a few times as the cache fills.
+         *
+         *  @param entries current number of entries
+         */
+        void ensureCapacity(int entries) {
+            if (entries > width && width < MAX_WIDTH)
+                resize(entries >= MAX_WIDTH ? MAX_WIDTH : Integer.highestOneBit(entries - 1) << 1);
+        }
+
+        /** @return counters per row */
+        int width() {
+            return width;
+        }
+
+        void increment(Object key) {
+            final long hash = hash(key);
+            for (int row = 0; row < ROWS; row++) {
+                final int index = index(hash, row);
+                final int shift = (index & 15) << 2;
+                if ((table[index >>> 4] >>> shift & MAX_COUNT) < MAX_COUNT)
+                    table[index >>> 4] += 1L << shift;
+            }
+            if (++additions >= sampleSize)
+                age();
+        }
+
+        int frequency(Object key) {
+            final long hash = hash(key);
+            long result = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                final int index = index(hash, row);
+                result = Math.min(result, table[index >>> 4] >>> ((index & 15) << 2) & MAX_COUNT);
+            }
+            return (int) result;
+        }
+
+        private void resize(int newWidth) {
+            this.width = newWidth;
+            this.table = new long[ROWS * newWidth / 16];
+            this.sampleSize = 10 * newWidth;
+            this.additions = 0;
+        }
+
+        /** Spread the key's own hashCode, which Strings cache, rather than
+         *  rehash the whole key on every access.
+         */
+        private static long hash(Object key) {
+            return Hashing.mix64(Objects.hashCode(key));
+        }
+
+        /** @return index of the key's counter in the row, over all rows */
+        private int index(long hash, int row) {
+            // a different odd multiplier per row gives independent-enough indexes
+            final long h = hash * (0x9e3779b97f4a7c15L + 2L * row);
+            return row * width + ((int) (h >>> 32) & (width - 1));
+        }
+
+        private void age() {
+            for (int i = 0; i < table.length; i++)
+                table[i] = table[i] >>> 1 & HALF_MASK;
+            additions = 0;
+        }
+    }
+}
@@ -1,11 +1,12 @@
 package com.wapitia.common;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 
 /**
  * Buffers some iterator so that the next of the iterator
- * may be peeked at.
+ * may be peeked at. Null items are passed through.
  *
  * @param <A> iterator container type
  */
@@ -14,7 +15,9 @@ public class BufferedIterator<A> implements Iterator<A> {
     private final Iterator<A> iter;
 
     // var
-    private Optional<A> nextOpt;
+    private boolean hasNext;
+    // var, the next item while hasNext, which may be null
+    private A next;
 
     /** Wraps any iterator in order to buffer it so that the
      *  top can be peeked.
@@ -29,9 +32,8 @@ public class BufferedIterator<A> implements Iterator<A> {
      *  for hasNext, next, and peek.
      */
     void advanceNext() {
-        this.nextOpt = iter.hasNext()
-            ? Optional.of(iter.next())
-            : Optional.empty();
+        this.hasNext = iter.hasNext();
+        this.next = hasNext ? iter.next() : null;
     }
 
     /** Determine if the iterator has more elements.
@@ -41,7 +43,7 @@ public class BufferedIterator<A> implements Iterator<A> {
      */
     @Override
     public boolean hasNext() {
-        return nextOpt.isPresent();
+        return hasNext;
     }
 
     /** Return the next element
@@ -51,16 +53,27 @@ public class BufferedIterator<A> implements Iterator<A> {
      */
     @Override
     public A next() {
-        A result = nextOpt.get();
+        A result = peekNext();
         advanceNext();
         return result;
     }
 
     /** @return the optional next object, does not advance the iterator,
-     *  can be repeatedly called.
+     *  can be repeatedly called. It is empty at the end, and also when the
+     *  next item is null, which {@link #peekNext()} tells apart.
      */
     public Optional<A> peek() {
-        return nextOpt;
+        return Optional.ofNullable(next);
+    }
+
+    /** @return the next object, which may be null, without advancing the
+     *  iterator; can be repeatedly called.
+     *  @throws NoSuchElementException if there is no next item.
+     */
+    public A peekNext() {
+        if (!hasNext)
+            throw new NoSuchElementException();
+        return next;
     }
 
 }
@@ -1,12 +1,25 @@
 package com.wapitia.common;
 
+import java.lang.reflect.Method;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -29,6 +42,147 @@ public class Collections {
         return result;
     }
 
+    /**
+     * Concurrent list.Map() functionality for mapping functions that block,
+     * typically on I/O. At most {@code maxConcurrency} mapping calls are in
+     * flight at once. Tasks run on virtual threads when the runtime provides
+     * them (java 21+), otherwise on a pool of at most {@code maxConcurrency}
+     * daemon threads. The result is in the same order as the source collection.
+     * <p>
+     * Fails fast: the first mapping failure cancels and interrupts all
+     * outstanding calls and is rethrown unchanged if it is unchecked,
+     * otherwise wrapped in a {@link CompletionException}.
+     *
+     * @param list Collection of some source type
+     * @param map map function, possibly blocking
+     * @param maxConcurrency maximum number of simultaneous map calls, at least 1
+     * @return a List of target types, in source order
+     * @throws CompletionException if interrupted while waiting, or
+     *             wrapping a checked failure of the map function
+     */
+    public static <S,T> List<T> listMapConcurrent(Collection<S> list, Function<S,T> map,
+            int maxConcurrency) {
+        return listMapConcurrent(list, map, maxConcurrency, null);
+    }
+
+    /**
+     * Concurrent list.Map() functionality with an overall time limit.
+     * As {@link #listMapConcurrent(Collection, Function, int)}, but if all
+     * the mapping calls have not completed within {@code timeout}, the
+     * outstanding calls are cancelled and a {@link CompletionException}
+     * wrapping a {@link TimeoutException} is thrown.
+     *
+     * @param list Collection of some source type
+     * @param map map function, possibly blocking
+     * @param maxConcurrency maximum number of simultaneous map calls, at least 1
+     * @param timeout time limit for the whole mapping, or null for no limit
+     * @return a List of target types, in source order
+     * @throws CompletionException on timeout, if interrupted while waiting, or
+     *             wrapping a checked failure of the map function
+     */
+    public static <S,T> List<T> listMapConcurrent(Collection<S> list, Function<S,T> map,
+            int maxConcurrency, Duration timeout) {
+        Objects.requireNonNull(list);
+        Objects.requireNonNull(map);
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+
+        final int size = list.size();
+        final Object[] results = new Object[size];
+        if (size == 0)
+            return new ArrayList<>();
+
+        final long deadline = timeout == null ? 0L : System.nanoTime() + timeout.toNanos();
+        final ExecutorService executor = ConcurrentMapExecutors.create(Math.min(maxConcurrency, size));
+        try {
+            final CompletionService<Void> completions = new ExecutorCompletionService<>(executor);
+            final Iterator<S> iter = list.iterator();
+            int submitted = 0;
+            for (int done = 0; done < size; done++) {
+                // keep the window of in-flight calls full
+                while (submitted - done < maxConcurrency && iter.hasNext()) {
+                    final int index = submitted++;
+                    final S item = iter.next();
+                    completions.submit(() -> {
+                        results[index] = map.apply(item);
+                        return null;
+                    });
+                }
+                final Future<Void> completed;
+                if (timeout == null)
+                    completed = completions.take();
+                else {
+                    completed = completions.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (completed == null)
+                        throw new CompletionException(new TimeoutException(
+                            "listMapConcurrent timed out after " + timeout));
+                }
+                completed.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new CompletionException(cause);
+        } finally {
+            // cancels and interrupts whatever is still running on failure
+            executor.shutdownNow();
+        }
+
+        @SuppressWarnings("unchecked")
+        final List<T> result = (List<T>) new ArrayList<>(Arrays.asList(results));
+        return result;
+    }
+
+    /** Makes the executors behind listMapConcurrent, preferring virtual
+     *  threads when the running JVM has them. Looked up reflectively
+     *  so that this library still targets java 8.
+     */
+    static class ConcurrentMapExecutors {
+
+        private static final Method newVirtualThreadPerTaskExecutor = findVirtualFactory();
+
+        private static Method findVirtualFactory() {
+            try {
+                return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException | SecurityException e) {
+                return null;
+            }
+        }
+
+        /** @return true if tasks will run on virtual threads. */
+        static boolean virtualThreadsAvailable() {
+            return newVirtualThreadPerTaskExecutor != null;
+        }
+
+        /** Create a new executor. Concurrency is bounded by the caller;
+         *  {@code poolSize} only sizes the platform thread fallback.
+         *
+         *  @param poolSize number of platform threads when virtual threads
+         *         are unavailable.
+         *  @return a new executor, which the caller must shut down.
+         */
+        static ExecutorService create(int poolSize) {
+            if (newVirtualThreadPerTaskExecutor != null) {
+                try {
+                    return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    // fall through to platform threads
+                }
+            }
+            return Executors.newFixedThreadPool(poolSize, runnable -> {
+                final Thread thread = new Thread(runnable, "listMapConcurrent");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
     /**
      * Add a new list item to a list in a map for a particular key. The map is of
      * the form {@code Map<K,List<V>>} for keys of type `K` and values of type `V`. The
@@ -39,6 +193,8 @@ public class Collections {
      * @param map target for addition
      * @param key map slot in which to add
      * @param value value to add to list value at key
+     * @see Streams#groupAdjacent(java.util.stream.Stream, Function) to group
+     *      input already sorted by key one group at a time.
      */
     public static <K, V> void addToMapOfLists(Map<K, List<V>> map, K key, V value) {
         addToMapOfLists(map, key, value, (K k) -> new ArrayList<>());
@@ -78,6 +234,8 @@ public class Collections {
      *                             value at key in the map.
      * @return the map value at that key or whats provided by the
      *             defaultValueProvider
+     * @see BoundedCache#getOrCreate(Object, Function) for a bounded,
+     *             thread-safe alternative to a plain map.
      */
     public static <K, C> C getOrCreateMapValue(Map<K, C> map, K key,
             Function<K, C> defaultValueProvider) {
@@ -216,8 +374,38 @@ public class Collections {
     }
 
 
+    /** Add a new item to a Collection supplied by a getter. Call the setter with
+     *  a new {@link CompactList} if getter returns null.
+     *
+     *  @param item item to add to collection
+     *  @param getter Supplier of a collection, which may return null
+     *  @param setter called only if getter returns null. May be null,
+     *              in which case setting is ignored.
+     *  @return the original item
+     */
+    public static <T> T addToCollection(T item, Supplier<Collection<T>> getter, Consumer<Collection<T>> setter) {
+        addToCollection(item, getter, setter, CompactList<T>::new);
+        return item;
+    }
+
+    /** Add a new item to a list supplied by a getter. Call the setter with
+     *  a new {@link CompactList} if getter returns null.
+     *
+     *  @param item item to add to list
+     *  @param getter Supplier of a list, which may return null
+     *  @param setter called only if getter returns null. May be null,
+     *              in which case setting is ignored.
+     *  @return the original item
+     */
+    public static <T> T addToList(T item, Supplier<List<T>> getter, Consumer<List<T>> setter) {
+        addToCollection(item, getter, setter, CompactList<T>::new);
+        return item;
+    }
+
     /** Add a new item to a set supplied by a getter. Call the setter with
-     *  a new Hashset if getter returns null.
+     *  a new {@link CompactSet} if getter returns null. A CompactSet holds
+     *  a few elements in far less memory than a HashSet, and switches to
+     *  hashing once it grows.
      *  @param item item to add to collection
      *  @param getter Supplier of a collection, which may return null
      *  @param setter called only if getter returns null and creator returns
@@ -225,7 +413,7 @@ public class Collections {
      *  @return the original item
      */
     public static <T> T addToSet(T item, Supplier<Set<T>> getter, Consumer<Set<T>> setter) {
-        addToCollection(item, getter, setter, HashSet<T>::new);
+        addToCollection(item, getter, setter, CompactSet<T>::new);
         return item;
     }
 
@@ -0,0 +1,145 @@
+package com.wapitia.common;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/** A mutable array-backed List tuned for holding only a handful of elements.
+ *  Unlike {@link java.util.ArrayList}, which jumps to a ten slot array on
+ *  its first add, the backing array starts empty and grows through
+ *  2, 4 and {@link CompactSet#INLINE_MAX} slots before growing by half
+ *  again on each resize. A list of a few elements thus wastes at most a
+ *  slot or two.
+ *  <p>
+ *  Null elements are permitted. Like {@code ArrayList}, the list is
+ *  serializable and cloneable. This class is not thread-safe.
+ *
+ *  @param <E> element type
+ *  @see Collections#addToList(Object, java.util.function.Supplier, java.util.function.Consumer)
+ */
+public class CompactList<E> extends AbstractList<E> implements RandomAccess, Cloneable, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Object[] EMPTY = {};
+
+    // var
+    private Object[] elements = EMPTY;
+    private int size;
+
+    /** Create an empty list. No storage is allocated until the first add. */
+    public CompactList() {
+    }
+
+    /** Create a list holding the elements of some collection, in its
+     *  iteration order, in an array of exactly that size.
+     *
+     *  @param source collection whose elements to copy, must not be null.
+     */
+    public CompactList(Collection<? extends E> source) {
+        final Object[] array = source.toArray();
+        this.elements = array.length == 0 ? EMPTY : Arrays.copyOf(array, array.length, Object[].class);
+        this.size = array.length;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+        checkIndex(index);
+        return (E) elements[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E set(int index, E element) {
+        checkIndex(index);
+        final E previous = (E) elements[index];
+        elements[index] = element;
+        return previous;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        if (index < 0 || index > size)
+            throw outOfBounds(index);
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, grownCapacity(size));
+        if (index < size)
+            System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = element;
+        size++;
+        modCount++;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E remove(int index) {
+        checkIndex(index);
+        final E removed = (E) elements[index];
+        final int tail = size - index - 1;
+        if (tail > 0)
+            System.arraycopy(elements, index + 1, elements, index, tail);
+        elements[--size] = null;
+        modCount++;
+        return removed;
+    }
+
+    /** Empties the list and releases its storage. */
+    @Override
+    public void clear() {
+        elements = EMPTY;
+        size = 0;
+        modCount++;
+    }
+
+    /** Shrink the backing array to exactly the current size. */
+    public void trimToSize() {
+        if (size < elements.length)
+            elements = size == 0 ? EMPTY : Arrays.copyOf(elements, size);
+    }
+
+    /** @return a shallow copy of this list, in an array of exactly its
+     *  size: the elements themselves are not cloned.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public CompactList<E> clone() {
+        try {
+            final CompactList<E> result = (CompactList<E>) super.clone();
+            result.elements = size == 0 ? EMPTY : Arrays.copyOf(elements, size);
+            result.modCount = 0;
+            return result;
+        } catch (CloneNotSupportedException e) {
+            // cannot happen, since this class is Cloneable
+            throw new InternalError(e);
+        }
+    }
+
+    /** Next array capacity: doubling while small, then by half again. */
+    static int grownCapacity(int capacity) {
+        final int result;
+        if (capacity == 0)
+            result = 2;
+        else if (capacity < CompactSet.INLINE_MAX)
+            result = Math.min(capacity * 2, CompactSet.INLINE_MAX);
+        else
+            result = capacity + (capacity >> 1);
+        return result;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw outOfBounds(index);
+    }
+
+    private IndexOutOfBoundsException outOfBounds(int index) {
+        return new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+}
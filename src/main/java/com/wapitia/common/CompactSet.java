@@ -0,0 +1,208 @@
+package com.wapitia.common;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/** A mutable Set tuned for the very common case of holding only a handful
+ *  of elements. Up to {@link #INLINE_MAX} elements are kept in a small array
+ *  and found by linear scan, which costs far less memory than the table and
+ *  entry nodes of a {@link HashSet}. Adding an element beyond that moves the
+ *  contents into a {@code HashSet}, which backs the set from then on.
+ *  <p>
+ *  While inline, iteration is in insertion order. Once hashed, iteration
+ *  order is that of {@code HashSet}. Null elements are permitted.
+ *  Like {@code HashSet}, the set is serializable and cloneable.
+ *  This class is not thread-safe.
+ *
+ *  @param <E> element type
+ *  @see Collections#addToSet(Object, java.util.function.Supplier, java.util.function.Consumer)
+ */
+public class CompactSet<E> extends AbstractSet<E> implements Cloneable, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of elements held inline before switching to a HashSet. */
+    public static final int INLINE_MAX = 8;
+
+    private static final Object[] EMPTY = {};
+
+    // var, inline storage, unused once hashed
+    private Object[] elements = EMPTY;
+    private int size;
+
+    // var, non-null once the set has outgrown its inline storage
+    private Set<E> hashed;
+
+    // var, bumped on every structural change of the inline storage
+    private transient int modCount;
+
+    /** Create an empty set. No storage is allocated until the first add. */
+    public CompactSet() {
+    }
+
+    /** Create a set holding the elements of some collection.
+     *
+     *  @param source collection whose elements to copy, must not be null.
+     */
+    public CompactSet(Collection<? extends E> source) {
+        addAll(source);
+    }
+
+    /** @return true if the set has outgrown its inline storage and is
+     *  backed by a HashSet.
+     */
+    boolean isHashed() {
+        return hashed != null;
+    }
+
+    @Override
+    public int size() {
+        return hashed != null ? hashed.size() : size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return hashed != null ? hashed.contains(o) : indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean add(E e) {
+        final boolean result;
+        if (hashed != null)
+            result = hashed.add(e);
+        else if (indexOf(e) >= 0)
+            result = false;
+        else if (size == INLINE_MAX) {
+            hashed = toHashSet();
+            hashed.add(e);
+            elements = EMPTY;
+            size = 0;
+            result = true;
+        } else {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, size == 0 ? 2 : size * 2);
+            elements[size++] = e;
+            modCount++;
+            result = true;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        final boolean result;
+        if (hashed != null)
+            result = hashed.remove(o);
+        else {
+            final int index = indexOf(o);
+            if (index >= 0)
+                removeAt(index);
+            result = index >= 0;
+        }
+        return result;
+    }
+
+    /** Empties the set and releases its storage, returning it to the
+     *  inline form.
+     */
+    @Override
+    public void clear() {
+        hashed = null;
+        elements = EMPTY;
+        size = 0;
+        modCount++;
+    }
+
+    /** @return a shallow copy of this set: the elements themselves are not cloned. */
+    @SuppressWarnings("unchecked")
+    @Override
+    public CompactSet<E> clone() {
+        try {
+            final CompactSet<E> result = (CompactSet<E>) super.clone();
+            result.elements = size == 0 ? EMPTY : Arrays.copyOf(elements, size);
+            result.hashed = hashed == null ? null : new HashSet<>(hashed);
+            result.modCount = 0;
+            return result;
+        } catch (CloneNotSupportedException e) {
+            // cannot happen, since this class is Cloneable
+            throw new InternalError(e);
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return hashed != null ? hashed.iterator() : new InlineIterator();
+    }
+
+    private int indexOf(Object o) {
+        for (int i = 0; i < size; i++)
+            if (Objects.equals(o, elements[i]))
+                return i;
+        return -1;
+    }
+
+    private void removeAt(int index) {
+        final int tail = size - index - 1;
+        if (tail > 0)
+            System.arraycopy(elements, index + 1, elements, index, tail);
+        elements[--size] = null;
+        modCount++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<E> toHashSet() {
+        // room for the inline elements and some growth without rehashing
+        final Set<E> result = new HashSet<>(INLINE_MAX * 4);
+        for (int i = 0; i < size; i++)
+            result.add((E) elements[i]);
+        return result;
+    }
+
+    /** Iterates the inline storage in insertion order. */
+    private class InlineIterator implements Iterator<E> {
+
+        // var
+        private int cursor;
+        private int lastReturned = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return cursor < size;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E next() {
+            checkForComodification();
+            if (cursor >= size)
+                throw new NoSuchElementException();
+            lastReturned = cursor++;
+            return (E) elements[lastReturned];
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned < 0)
+                throw new IllegalStateException();
+            checkForComodification();
+            removeAt(lastReturned);
+            cursor = lastReturned;
+            lastReturned = -1;
+            expectedModCount = modCount;
+        }
+
+        private void checkForComodification() {
+            if (hashed != null || modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+    }
+}
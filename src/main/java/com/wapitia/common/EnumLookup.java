@@ -1,10 +1,15 @@
 package com.wapitia.common;
 
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
 
 /** Provides a lookup by name of an enum string without
  *  having an exception thrown, as does Enum.valueOf()
@@ -29,6 +34,15 @@ import java.util.Optional;
         }
     }
  *  </pre>
+ *  <p>
+ *  Delimited lists of names such as {@code "CodeOnly|HeaderOnly"} can be
+ *  parsed directly into an {@link EnumSet} or a {@code long} bit mask, and
+ *  printed back, without splitting into intermediate Strings:
+ *  <pre>
+    EnumSet&lt;ScopeChoice> scopes = ScopeChoice.lookup.parseSet(header).orElse(defaults);
+    long stored = ScopeChoice.lookup.toMask(scopes);
+    String text = ScopeChoice.lookup.format(stored, ',');
+ *  </pre>
  *
  *  @param <E> Enum type, extends {@code Enum<E>}
  */
@@ -37,6 +51,17 @@ public class EnumLookup<E extends Enum<E>> {
     /** Holds both enum names and upper-case enum names, in case they are different. */
     private final Map<String,E> byName;
 
+    /** The enum's class, for making EnumSets. */
+    private final Class<E> type;
+
+    /** All of the enum's constants, indexed by ordinal, for decoding masks. */
+    private final E[] universe;
+
+    /** Lookup list elements grouped by name length, for matching names
+     *  inside a CharSequence without making substrings.
+     */
+    private final Map<Integer,E[]> byLength;
+
     /** Constructor takes a list of Enum values, and maps them by name.
      *  This typically is provided by the enum's {@code values()}
      *  static function.
@@ -46,10 +71,19 @@ public class EnumLookup<E extends Enum<E>> {
     public EnumLookup(E[] list) {
         Objects.requireNonNull(list);
         this.byName = new HashMap<String,E>(list.length);
+        final Map<Integer,List<E>> lengths = new HashMap<>();
         for (E item: list) {
             byName.put(item.name(), item);
             byName.put(item.name().toUpperCase(Locale.ENGLISH), item);
+            Collections.addToMapOfLists(lengths, item.name().length(), item);
         }
+        @SuppressWarnings("unchecked")
+        final Class<E> componentType = (Class<E>) list.getClass().getComponentType();
+        this.type = componentType;
+        this.universe = type.getEnumConstants();
+        this.byLength = new HashMap<>(lengths.size());
+        lengths.forEach((length, items) ->
+            byLength.put(length, items.toArray(Arrays.copyOf(list, 0))));
     }
 
     /** Return Some Enum value corresponding to the name, or None if it doesn't exist.
@@ -72,4 +106,203 @@ public class EnumLookup<E extends Enum<E>> {
         return Optional.ofNullable(byName
             .get(name.toUpperCase(Locale.ENGLISH)));
     }
+
+    /** Parse a list of enum names separated by commas or vertical bars,
+     *  such as {@code "CodeOnly, HeaderOnly"} or {@code "CodeOnly|HeaderOnly"},
+     *  into an EnumSet. Whitespace around names and empty entries are ignored,
+     *  so an empty or blank list yields an empty set.
+     *  The case match of each name must be exact.
+     *
+     * @param names delimited enum names, must not be null.
+     * @return Some set of the named values, or None if any name is not found.
+     */
+    public Optional<EnumSet<E>> parseSet(CharSequence names) {
+        return parseSet(names, false);
+    }
+
+    /** Parse a list of enum names separated by commas or vertical bars
+     *  into an EnumSet, as {@link #parseSet(CharSequence)}, optionally
+     *  ignoring case.
+     *
+     * @param names delimited enum names, must not be null.
+     * @param caseInsensitive whether names are matched ignoring case.
+     * @return Some set of the named values, or None if any name is not found.
+     */
+    public Optional<EnumSet<E>> parseSet(CharSequence names, boolean caseInsensitive) {
+        final EnumSet<E> result = EnumSet.noneOf(type);
+        final int length = names.length();
+        for (int start = 0; start <= length; ) {
+            final int end = nextDelimiter(names, start);
+            final int from = skipSpace(names, start, end);
+            final int to = trimSpace(names, from, end);
+            if (from < to) {
+                final E item = lookupToken(names, from, to, caseInsensitive);
+                if (item == null)
+                    return Optional.empty();
+                result.add(item);
+            }
+            start = end + 1;
+        }
+        return Optional.of(result);
+    }
+
+    /** Parse a list of enum names separated by commas or vertical bars
+     *  directly into a bit mask, where bit {@code n} is set for the enum value
+     *  of ordinal {@code n}. Otherwise as {@link #parseSet(CharSequence)}.
+     *
+     * @param names delimited enum names, must not be null.
+     * @param caseInsensitive whether names are matched ignoring case.
+     * @return Some mask of the named values, or None if any name is not found.
+     * @throws UnsupportedOperationException if the enum has more than 64 values.
+     */
+    public OptionalLong parseMask(CharSequence names, boolean caseInsensitive) {
+        checkMaskable();
+        long result = 0L;
+        final int length = names.length();
+        for (int start = 0; start <= length; ) {
+            final int end = nextDelimiter(names, start);
+            final int from = skipSpace(names, start, end);
+            final int to = trimSpace(names, from, end);
+            if (from < to) {
+                final E item = lookupToken(names, from, to, caseInsensitive);
+                if (item == null)
+                    return OptionalLong.empty();
+                result |= 1L << item.ordinal();
+            }
+            start = end + 1;
+        }
+        return OptionalLong.of(result);
+    }
+
+    /** Encode a set of enum values as a bit mask, where bit {@code n} is set
+     *  for the enum value of ordinal {@code n}. The encoding depends on the
+     *  declaration order of the enum, so stored masks must be migrated if
+     *  values are reordered or removed.
+     *
+     * @param items set of enum values, must not be null.
+     * @return bit mask of the set's values.
+     * @throws UnsupportedOperationException if the enum has more than 64 values.
+     */
+    public long toMask(Set<E> items) {
+        checkMaskable();
+        long result = 0L;
+        for (E item: items)
+            result |= 1L << item.ordinal();
+        return result;
+    }
+
+    /** Decode a bit mask made by {@link #toMask(Set)} or
+     *  {@link #parseMask(CharSequence, boolean)} back into a set. Bits beyond
+     *  the enum's last ordinal are ignored.
+     *
+     * @param mask bit mask of enum ordinals.
+     * @return a new set of the enum values whose bits are set.
+     * @throws UnsupportedOperationException if the enum has more than 64 values.
+     */
+    public EnumSet<E> fromMask(long mask) {
+        checkMaskable();
+        final EnumSet<E> result = EnumSet.noneOf(type);
+        for (long bits = mask & universeMask(); bits != 0L; bits &= bits - 1)
+            result.add(universe[Long.numberOfTrailingZeros(bits)]);
+        return result;
+    }
+
+    /** Print the enum names of a bit mask in ordinal order, separated by the
+     *  delimiter, such as {@code "CodeOnly|HeaderOnly"}. Bits beyond the
+     *  enum's last ordinal are ignored.
+     *
+     * @param mask bit mask of enum ordinals.
+     * @param delimiter character placed between names.
+     * @return delimited names, empty if no bits are set.
+     * @throws UnsupportedOperationException if the enum has more than 64 values.
+     */
+    public String format(long mask, char delimiter) {
+        checkMaskable();
+        final long bits = mask & universeMask();
+        int capacity = 0;
+        for (long b = bits; b != 0L; b &= b - 1)
+            capacity += universe[Long.numberOfTrailingZeros(b)].name().length() + 1;
+        final StringBuilder result = new StringBuilder(capacity);
+        for (long b = bits; b != 0L; b &= b - 1) {
+            if (result.length() > 0)
+                result.append(delimiter);
+            result.append(universe[Long.numberOfTrailingZeros(b)].name());
+        }
+        return result.toString();
+    }
+
+    /** Print the enum names of a set in ordinal order, separated by the
+     *  delimiter, such as {@code "CodeOnly|HeaderOnly"}.
+     *
+     * @param items set of enum values, must not be null.
+     * @param delimiter character placed between names.
+     * @return delimited names, empty if the set is empty.
+     */
+    public String format(Set<E> items, char delimiter) {
+        final StringBuilder result = new StringBuilder();
+        final Set<E> ordered = items instanceof EnumSet || items.size() < 2 ? items
+            : EnumSet.copyOf(items);
+        for (E item: ordered) {
+            if (result.length() > 0)
+                result.append(delimiter);
+            result.append(item.name());
+        }
+        return result.toString();
+    }
+
+    private static int nextDelimiter(CharSequence names, int start) {
+        int index = start;
+        final int length = names.length();
+        while (index < length && names.charAt(index) != ',' && names.charAt(index) != '|')
+            index++;
+        return index;
+    }
+
+    private static int skipSpace(CharSequence names, int from, int to) {
+        int index = from;
+        while (index < to && Character.isWhitespace(names.charAt(index)))
+            index++;
+        return index;
+    }
+
+    private static int trimSpace(CharSequence names, int from, int to) {
+        int index = to;
+        while (index > from && Character.isWhitespace(names.charAt(index - 1)))
+            index--;
+        return index;
+    }
+
+    /** Find the lookup element whose name matches {@code names[start,end)}.
+     *  @return the element or null if there is none.
+     */
+    private E lookupToken(CharSequence names, int start, int end, boolean caseInsensitive) {
+        final E[] candidates = byLength.get(end - start);
+        if (candidates != null)
+            for (E item: candidates)
+                if (regionMatches(item.name(), names, start, caseInsensitive))
+                    return item;
+        return null;
+    }
+
+    private static boolean regionMatches(String name, CharSequence names, int start,
+            boolean caseInsensitive) {
+        for (int i = 0; i < name.length(); i++) {
+            final char a = name.charAt(i);
+            final char b = names.charAt(start + i);
+            if (a != b && !(caseInsensitive
+                    && Character.toUpperCase(a) == Character.toUpperCase(b)))
+                return false;
+        }
+        return true;
+    }
+
+    private long universeMask() {
+        return universe.length == 64 ? -1L : (1L << universe.length) - 1;
+    }
+
+    private void checkMaskable() {
+        if (universe.length > 64)
+            throw new UnsupportedOperationException(type.getName()
+                + " has more than 64 values and cannot be encoded as a long mask");
+    }
 }
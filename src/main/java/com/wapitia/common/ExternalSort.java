@@ -0,0 +1,363 @@
+package com.wapitia.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+/** Sorts more items than fit in memory. The source is cut into runs of at
+ *  most {@code runSize} items, each run is sorted in memory, with
+ *  {@link Arrays#parallelSort(Object[], Comparator)}, and written to a
+ *  temporary file by a {@link Serializer}. The runs are then merged back
+ *  lazily, reading one item at a time from each. At most one run is held in
+ *  memory at a time, so heap use is bounded by the run size.
+ *  <p>
+ *  A source that fits in a single run is sorted in memory with no files.
+ *  Runs beyond {@link #MAX_MERGE_WIDTH} are merged in several passes so as not
+ *  to hold too many files open. The temporary files are deleted when the
+ *  result iterator is exhausted or closed. I/O failures are thrown as
+ *  {@link UncheckedIOException}s.
+ *  The sort is stable: runs are sorted stably and, when merged, equal items
+ *  are taken from the earlier run first, so equal items keep their source
+ *  order, as with {@link java.util.stream.Stream#sorted(Comparator)}.
+ *
+ *  @param <T> item type
+ *  @see Streams#externalSort(java.util.stream.Stream, Comparator, int, Serializer)
+ */
+public class ExternalSort<T> {
+
+    /** Maximum number of run files merged at once. */
+    public static final int MAX_MERGE_WIDTH = 64;
+
+    /** Writes items to and reads them back from a run file.
+     *
+     *  @param <T> item type
+     */
+    public interface Serializer<T> {
+
+        /** Write one item.
+         *  @param out destination
+         *  @param item item to write
+         *  @throws IOException on failure to write
+         */
+        void write(DataOutputStream out, T item) throws IOException;
+
+        /** Read one item written by {@link #write(DataOutputStream, Object)}.
+         *  @param in source
+         *  @return the item
+         *  @throws IOException on failure to read
+         */
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /** @return a Serializer of non-null Strings as length-prefixed UTF-8 */
+    public static Serializer<String> stringSerializer() {
+        return new Serializer<String>() {
+            @Override
+            public void write(DataOutputStream out, String item) throws IOException {
+                final byte[] bytes = item.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            @Override
+            public String read(DataInputStream in) throws IOException {
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /** @return a Serializer of non-null Longs */
+    public static Serializer<Long> longSerializer() {
+        return new Serializer<Long>() {
+            @Override
+            public void write(DataOutputStream out, Long item) throws IOException {
+                out.writeLong(item);
+            }
+
+            @Override
+            public Long read(DataInputStream in) throws IOException {
+                return in.readLong();
+            }
+        };
+    }
+
+    private final Comparator<? super T> cmp;
+    private final int runSize;
+    private final Serializer<T> serializer;
+    private final Path tempDir;
+
+    /** Create a sorter writing run files to the default temporary directory.
+     *
+     *  @param cmp ordering of items
+     *  @param runSize maximum number of items held in memory, at least 1
+     *  @param serializer writes and reads items in run files
+     */
+    public ExternalSort(Comparator<? super T> cmp, int runSize, Serializer<T> serializer) {
+        this(cmp, runSize, serializer, null);
+    }
+
+    /** Create a sorter.
+     *
+     *  @param cmp ordering of items
+     *  @param runSize maximum number of items held in memory, at least 1
+     *  @param serializer writes and reads items in run files
+     *  @param tempDir directory for run files, or null for the default
+     *         temporary directory
+     */
+    public ExternalSort(Comparator<? super T> cmp, int runSize, Serializer<T> serializer,
+            Path tempDir) {
+        if (runSize < 1)
+            throw new IllegalArgumentException("runSize must be at least 1");
+        this.cmp = Objects.requireNonNull(cmp);
+        this.runSize = runSize;
+        this.serializer = Objects.requireNonNull(serializer);
+        this.tempDir = tempDir;
+    }
+
+    /** Consume the source and return its items in sorted order. The source
+     *  is read fully before this returns; the merge is lazy.
+     *
+     *  @param source items to sort
+     *  @return sorted iterator, which should be closed if not read to the end
+     *  @throws UncheckedIOException if a run file cannot be written
+     */
+    public SortedIterator<T> sort(Iterator<? extends T> source) {
+        final List<Run> runs = new ArrayList<>();
+        try {
+            Object[] buffer = fillRun(source);
+            if (!source.hasNext())
+                // the whole source fits in memory
+                return new SortedIterator<>(sortRun(buffer), runs);
+            while (buffer.length > 0) {
+                runs.add(writeRun(sortRun(buffer)));
+                buffer = fillRun(source);
+            }
+            while (runs.size() > MAX_MERGE_WIDTH)
+                mergePass(runs);
+            return new SortedIterator<>(new Merge(runs), runs);
+        } catch (IOException e) {
+            deleteAll(runs);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException | Error e) {
+            deleteAll(runs);
+            throw e;
+        }
+    }
+
+    /** Sorted items, merged lazily from run files, which are deleted on close.
+     *
+     *  @param <T> item type
+     */
+    public static class SortedIterator<T> implements Iterator<T>, Closeable {
+
+        private final Iterator<T> merged;
+        private final List<? extends Closeable> resources;
+
+        // var
+        private boolean closed;
+
+        SortedIterator(Iterator<T> merged, List<? extends Closeable> resources) {
+            this.merged = merged;
+            this.resources = resources;
+        }
+
+        @Override
+        public boolean hasNext() {
+            final boolean result = !closed && merged.hasNext();
+            if (!result)
+                close();
+            return result;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return merged.next();
+        }
+
+        /** Close and delete all run files. */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                deleteAll(resources);
+            }
+        }
+    }
+
+    private Object[] fillRun(Iterator<? extends T> source) {
+        final List<T> run = new ArrayList<>(Math.min(runSize, 1 << 16));
+        while (run.size() < runSize && source.hasNext())
+            run.add(source.next());
+        return run.toArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Iterator<T> sortRun(Object[] buffer) {
+        final T[] items = (T[]) buffer;
+        Arrays.parallelSort(items, cmp);
+        return Arrays.asList(items).iterator();
+    }
+
+    private Run writeRun(Iterator<T> items) throws IOException {
+        final Path path = tempDir == null
+            ? Files.createTempFile("extsort", ".run")
+            : Files.createTempFile(tempDir, "extsort", ".run");
+        final Run run = new Run(path);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(run.path)))) {
+            while (items.hasNext()) {
+                serializer.write(out, items.next());
+                run.count++;
+            }
+        } catch (IOException | RuntimeException e) {
+            run.close();
+            throw e;
+        }
+        return run;
+    }
+
+    /** Merge the runs in groups of MAX_MERGE_WIDTH, replacing them by the results. */
+    private void mergePass(List<Run> runs) throws IOException {
+        final List<Run> merged = new ArrayList<>();
+        try {
+            for (int from = 0; from < runs.size(); from += MAX_MERGE_WIDTH) {
+                final List<Run> group = runs.subList(from, Math.min(from + MAX_MERGE_WIDTH, runs.size()));
+                final Merge merge = new Merge(group);
+                try {
+                    merged.add(writeRun(merge));
+                } finally {
+                    deleteAll(group);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteAll(merged);
+            throw e;
+        }
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    private static void deleteAll(List<? extends Closeable> resources) {
+        for (Closeable resource: resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                // best effort; keep deleting the rest
+            }
+        }
+    }
+
+    /** A sorted run file and, while merging, its open reader. */
+    private class Run implements Closeable {
+
+        final Path path;
+
+        // var
+        long count;
+        // position among the runs being merged, earlier runs first
+        int order;
+        DataInputStream in;
+        long remaining;
+        T head;
+
+        Run(Path path) {
+            this.path = path;
+        }
+
+        /** Open for reading and load the first item.
+         *  @return false if the run is empty
+         */
+        boolean open() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+            remaining = count;
+            return advance();
+        }
+
+        /** Load the next item into head.
+         *  @return false if the run is exhausted
+         */
+        boolean advance() throws IOException {
+            final boolean result = remaining > 0;
+            if (result) {
+                head = serializer.read(in);
+                remaining--;
+            } else {
+                head = null;
+                in.close();
+                in = null;
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (in != null)
+                    in.close();
+                in = null;
+            } finally {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /** Lazy k-way merge of runs through a priority queue of their heads.
+     *  Ties go to the earlier run, which keeps the merge stable.
+     */
+    private class Merge implements Iterator<T> {
+
+        private final PriorityQueue<Run> queue;
+
+        Merge(List<Run> runs) throws IOException {
+            this.queue = new PriorityQueue<>(Math.max(runs.size(), 1), (a, b) -> {
+                final int result = cmp.compare(a.head, b.head);
+                return result != 0 ? result : Integer.compare(a.order, b.order);
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                final Run run = runs.get(i);
+                run.order = i;
+                if (run.open())
+                    queue.add(run);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            final Run run = queue.poll();
+            if (run == null)
+                throw new NoSuchElementException();
+            final T result = run.head;
+            try {
+                if (run.advance())
+                    queue.add(run);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return result;
+        }
+    }
+}
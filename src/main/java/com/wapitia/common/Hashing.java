@@ -0,0 +1,91 @@
+package com.wapitia.common;
+
+import java.util.UUID;
+
+/** 64-bit hash functions shared by the probabilistic structures
+ *  {@link ScalableBloomFilter} and {@link HyperLogLog}.
+ *  Both need well spread 64-bit hashes, which {@link Object#hashCode()}
+ *  alone does not provide.
+ */
+public class Hashing {
+
+    /** Spread the bits of a long, so that close inputs give unrelated
+     *  outputs. This is the finalizer of MurmurHash3.
+     *
+     *  @param x value to mix
+     *  @return mixed 64-bit hash
+     */
+    public static long mix64(long x) {
+        long h = x;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** Hash a long id.
+     *
+     *  @param id the id
+     *  @return 64-bit hash of the id
+     */
+    public static long hashLong(long id) {
+        return mix64(id);
+    }
+
+    /** Hash a UUID given as its two halves, without touching a UUID object.
+     *
+     *  @param msb most significant bits of the UUID
+     *  @param lsb least significant bits of the UUID
+     *  @return 64-bit hash of the UUID
+     */
+    public static long hashUuid(long msb, long lsb) {
+        return mix64(msb ^ mix64(lsb));
+    }
+
+    /** Hash a UUID.
+     *
+     *  @param uuid UUID to hash, must not be null
+     *  @return 64-bit hash of the UUID
+     */
+    public static long hashUuid(UUID uuid) {
+        return hashUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /** Hash the characters of a String to a full 64 bits, unlike
+     *  {@link String#hashCode()}. This is 64-bit FNV-1a over the UTF-16
+     *  chars, finished with {@link #mix64(long)}.
+     *
+     *  @param s String to hash, must not be null
+     *  @return 64-bit hash of the String
+     */
+    public static long hashString(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    /** Hash any object. UUIDs, Longs and Strings get a full 64-bit hash.
+     *  Any other object is hashed through its {@code hashCode}, which has
+     *  only 32 bits of entropy: beyond some {@code falsePositiveRate * 2^32}
+     *  distinct values, collisions exceed the false-positive bound of a
+     *  {@link ScalableBloomFilter}, so pass a dedicated 64-bit hash to the
+     *  probabilistic structures for those.
+     *
+     *  @param o object to hash, may be null
+     *  @return 64-bit hash of the object
+     */
+    public static long hashObject(Object o) {
+        return o instanceof UUID ? hashUuid((UUID) o)
+            : o instanceof Long ? hashLong((Long) o)
+            : o instanceof String ? hashString((String) o)
+            : mix64(o == null ? 0L : o.hashCode());
+    }
+
+    /** Factory class is not to be instantiated */
+    private Hashing() {}
+}
@@ -0,0 +1,215 @@
+package com.wapitia.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.ToLongFunction;
+
+/** A Bloom filter that grows as items are added, keeping its overall
+ *  false-positive rate under a chosen bound without having to know the
+ *  final number of items up front.
+ *  <p>
+ *  The filter is a series of plain Bloom filters. Each new one holds
+ *  {@link #GROWTH} times the items of the previous, at {@link #TIGHTENING}
+ *  times its false-positive rate, so the sum of the rates stays below the
+ *  requested bound. An item may be in the set if any filter says so.
+ *  <p>
+ *  Items are reduced to 64-bit hashes by a hash function, by default
+ *  {@link Hashing#hashObject(Object)}. Longs and UUIDs can be added directly
+ *  via {@link #addLong(long)} and {@link #addUuid(long, long)} without boxing.
+ *  This class is not thread-safe.
+ *
+ *  @param <T> item type
+ *  @see Streams#distinctApproximate(java.util.stream.Stream, long, double)
+ */
+public class ScalableBloomFilter<T> {
+
+    /** Each new filter layer holds this many times the items of the last. */
+    public static final int GROWTH = 2;
+
+    /** Each new filter layer has this fraction of the false-positive rate of the last. */
+    public static final double TIGHTENING = 0.8;
+
+    private static final double LN2 = Math.log(2);
+
+    private final ToLongFunction<? super T> hasher;
+    private final List<Layer> layers = new ArrayList<>();
+
+    // var, the layer receiving new items
+    private Layer current;
+
+    /** Create a filter hashing items with {@link Hashing#hashObject(Object)}.
+     *  The false-positive bound holds only while that hash keeps distinct
+     *  items apart, which for types other than String, Long and UUID,
+     *  hashed from their 32-bit {@code hashCode}, fails beyond some
+     *  {@code falsePositiveRate * 2^32} items.
+     *
+     *  @param initialCapacity expected item count of the first layer, at least 1
+     *  @param falsePositiveRate bound on the chance that a new item is taken
+     *         as already present, between 0 and 1 exclusive
+     */
+    public ScalableBloomFilter(long initialCapacity, double falsePositiveRate) {
+        this(initialCapacity, falsePositiveRate, Hashing::hashObject);
+    }
+
+    /** Create a filter with a given item hash function.
+     *
+     *  @param initialCapacity expected item count of the first layer, at least 1
+     *  @param falsePositiveRate bound on the chance that a new item is taken
+     *         as already present, between 0 and 1 exclusive
+     *  @param hasher reduces an item to a well spread 64-bit hash
+     */
+    public ScalableBloomFilter(long initialCapacity, double falsePositiveRate,
+            ToLongFunction<? super T> hasher) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException("initialCapacity must be at least 1");
+        if (!(falsePositiveRate > 0.0 && falsePositiveRate < 1.0))
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        this.hasher = Objects.requireNonNull(hasher);
+        addLayer(initialCapacity, falsePositiveRate * (1.0 - TIGHTENING));
+    }
+
+    /** Add an item.
+     *
+     *  @param item item to add
+     *  @return true if the item was not already (probably) present
+     */
+    public boolean add(T item) {
+        return addHash(hasher.applyAsLong(item));
+    }
+
+    /** Add a long id, hashed by {@link Hashing#hashLong(long)}.
+     *
+     *  @param id id to add
+     *  @return true if the id was not already (probably) present
+     */
+    public boolean addLong(long id) {
+        return addHash(Hashing.hashLong(id));
+    }
+
+    /** Add a UUID by its two halves, hashed by {@link Hashing#hashUuid(long, long)}.
+     *
+     *  @param msb most significant bits of the UUID
+     *  @param lsb least significant bits of the UUID
+     *  @return true if the UUID was not already (probably) present
+     */
+    public boolean addUuid(long msb, long lsb) {
+        return addHash(Hashing.hashUuid(msb, lsb));
+    }
+
+    /** Add a UUID, hashed by {@link Hashing#hashUuid(UUID)}.
+     *
+     *  @param uuid UUID to add
+     *  @return true if the UUID was not already (probably) present
+     */
+    public boolean addUuid(UUID uuid) {
+        return addHash(Hashing.hashUuid(uuid));
+    }
+
+    /** Add a precomputed 64-bit hash.
+     *
+     *  @param hash the item's hash
+     *  @return true if the hash was not already (probably) present
+     */
+    public boolean addHash(long hash) {
+        final long h2 = secondHash(hash);
+        for (Layer layer: layers)
+            if (layer.contains(hash, h2))
+                return false;
+        if (current.count >= current.capacity)
+            addLayer(current.capacity * GROWTH, current.falsePositiveRate * TIGHTENING);
+        current.add(hash, h2);
+        return true;
+    }
+
+    /** @param item item to test
+     *  @return true if the item may have been added, false if it surely was not
+     */
+    public boolean mightContain(T item) {
+        return mightContainHash(hasher.applyAsLong(item));
+    }
+
+    /** @param hash the item's precomputed hash
+     *  @return true if the hash may have been added, false if it surely was not
+     */
+    public boolean mightContainHash(long hash) {
+        final long h2 = secondHash(hash);
+        for (Layer layer: layers)
+            if (layer.contains(hash, h2))
+                return true;
+        return false;
+    }
+
+    /** @return the number of items added, counting only those reported new. */
+    public long count() {
+        long result = 0L;
+        for (Layer layer: layers)
+            result += layer.count;
+        return result;
+    }
+
+    /** @return the number of bits in use over all layers */
+    public long bitSize() {
+        long result = 0L;
+        for (Layer layer: layers)
+            result += layer.bitCount;
+        return result;
+    }
+
+    private void addLayer(long capacity, double falsePositiveRate) {
+        current = new Layer(capacity, falsePositiveRate);
+        layers.add(current);
+    }
+
+    /** Second, independent hash for double hashing, never even so that
+     *  the probe sequence does not cycle early.
+     */
+    private static long secondHash(long hash) {
+        return Hashing.mix64(hash ^ 0x9e3779b97f4a7c15L) | 1L;
+    }
+
+    /** A plain Bloom filter sized for a number of items and a false-positive rate. */
+    private static class Layer {
+
+        final long capacity;
+        final double falsePositiveRate;
+        final long bitCount;
+        final int hashCount;
+        final long[] bits;
+
+        // var
+        long count;
+
+        Layer(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            final long optimalBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+            final long words = Math.min((optimalBits + 63) / 64, Integer.MAX_VALUE - 8);
+            this.bits = new long[(int) Math.max(words, 1)];
+            this.bitCount = bits.length * 64L;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * LN2));
+        }
+
+        void add(long h1, long h2) {
+            long combined = h1;
+            for (int i = 0; i < hashCount; i++) {
+                final long index = Long.remainderUnsigned(combined, bitCount);
+                bits[(int) (index >>> 6)] |= 1L << index;
+                combined += h2;
+            }
+            count++;
+        }
+
+        boolean contains(long h1, long h2) {
+            long combined = h1;
+            for (int i = 0; i < hashCount; i++) {
+                final long index = Long.remainderUnsigned(combined, bitCount);
+                if ((bits[(int) (index >>> 6)] & (1L << index)) == 0L)
+                    return false;
+                combined += h2;
+            }
+            return true;
+        }
+    }
+}
@@ -1,13 +1,34 @@
 package com.wapitia.common;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-/** Offers zip support for two {@link Iterator}s or two {@link Streams}s. */
+/** Offers zip support for two {@link Iterator}s or two {@link Streams}s,
+ *  and the reverse, tee and unzip, over a bounded shared buffer.
+ *  Also offers approximate distinct, bounded top-K and external sort
+ *  operators for streams too large for {@link Stream#distinct()} or
+ *  {@link Stream#sorted()}, and grouping of adjacent items of
+ *  pre-sorted streams.
+ */
 public class Streams {
 
     /** A zipped iterator of two iterators.
@@ -53,6 +74,90 @@ public class Streams {
 
     }
 
+    /** Groups runs of adjacent items with equal keys, as from input already
+     *  sorted or clustered by key, reducing each run with a downstream
+     *  collector. Only the current run is held, by the collector, so memory
+     *  is bounded by the largest run rather than the whole input.
+     *  Keys are compared with {@link Objects#equals(Object, Object)}; a key
+     *  that comes back after another key starts a new group. Items and keys
+     *  may be null. Nothing is read from the source until the first call to
+     *  {@link #hasNext()} or {@link #next()}.
+     *
+     * @param <T> Item type of the source iterator.
+     * @param <K> Key type.
+     * @param <A> Accumulation type of the downstream collector.
+     * @param <R> Result type of each group.
+     */
+    public static class GroupIterator<T,K,A,R> implements Iterator<Pair<K,R>> {
+
+        private final Iterator<T> source;
+        private final Function<? super T,? extends K> keyFn;
+        private final Collector<? super T,A,R> downstream;
+
+        // var, source buffered on first use, so that nothing is read before then
+        private BufferedIterator<T> iter;
+        // var, key of iter.peekNext() once computed, so each key is computed once
+        private K peekedKey;
+        private boolean hasPeekedKey;
+
+        /** Constructor takes the source iterator, which is buffered so that
+         *  the start of the next run can be peeked, a key function and the
+         *  downstream collector reducing each run. All must be non-null.
+         *
+         *  @param source source of items, grouped or sorted by key
+         *  @param keyFn key of an item
+         *  @param downstream reduces the items of one run
+         */
+        public GroupIterator(Iterator<T> source, Function<? super T,? extends K> keyFn,
+                Collector<? super T,A,R> downstream) {
+            this.source = source;
+            this.keyFn = keyFn;
+            this.downstream = downstream;
+        }
+
+        /** Returns true if another run of items remains.
+         *  @return true if there is another group
+         */
+        @Override
+        public boolean hasNext() {
+            return buffered().hasNext();
+        }
+
+        /** Consumes the next run of items with equal keys and returns its
+         *  key and reduced value as a {@link Pair}.
+         *
+         * @return a {@code Pair<K,R>} of the run's key and result.
+         */
+        @Override
+        public Pair<K,R> next() {
+            final BufferedIterator<T> iter = buffered();
+            final K key = hasPeekedKey ? peekedKey : keyFn.apply(iter.peekNext());
+            hasPeekedKey = false;
+            peekedKey = null;
+
+            final A acc = downstream.supplier().get();
+            downstream.accumulator().accept(acc, iter.next());
+            while (iter.hasNext()) {
+                final K nextKey = keyFn.apply(iter.peekNext());
+                if (!Objects.equals(key, nextKey)) {
+                    peekedKey = nextKey;
+                    hasPeekedKey = true;
+                    break;
+                }
+                downstream.accumulator().accept(acc, iter.next());
+            }
+            return new Pair<K,R>(key, downstream.finisher().apply(acc));
+        }
+
+        private BufferedIterator<T> buffered() {
+            if (iter == null)
+                iter = source instanceof BufferedIterator
+                    ? (BufferedIterator<T>) source
+                    : new BufferedIterator<T>(source);
+            return iter;
+        }
+    }
+
     /** Create and return an iterator which consumes the paired items of its two
      *  input iterators, where the resultant iterator produces {@link Pair}s
      *  of each item.
@@ -93,4 +198,351 @@ public class Streams {
                 Spliterator.ORDERED | Spliterator.IMMUTABLE | Spliterator.NONNULL),
             false);
     }
+
+    /** Split an iterator into {@code count} iterators which each produce all
+     *  of the source's items. The branches share one buffer of {@code capacity}
+     *  items, so memory is bounded by how far the branches drift apart, and
+     *  {@code policy} says what to do when one runs too far ahead.
+     *  Close a branch that will not be read to the end.
+     *
+     *  @param iter source iterator, must not be null
+     *  @param count number of branches, at least 1
+     *  @param capacity number of items buffered before the policy applies
+     *  @param policy one of block, grow or fail; spilling needs a serializer
+     *  @return the branch iterators
+     */
+    public static <A> List<Tee<A>.Branch> tee(Iterator<A> iter, int count, int capacity,
+            Tee.Policy policy) {
+        return new Tee<A>(iter, count, capacity, policy, null).branches();
+    }
+
+    /** Split an iterator into {@code count} iterators which each produce all
+     *  of the source's items, as {@link #tee(Iterator, int, int, Tee.Policy)},
+     *  spilling items past the buffer to a temporary file, so the branches
+     *  may be read one after another on one thread in bounded heap.
+     *
+     *  @param iter source iterator, must not be null
+     *  @param count number of branches, at least 1
+     *  @param capacity number of items buffered in heap
+     *  @param serializer writes and reads items in the spill file
+     *  @return the branch iterators
+     *  @see Tee.Policy#SPILL
+     */
+    public static <A> List<Tee<A>.Branch> tee(Iterator<A> iter, int count, int capacity,
+            ExternalSort.Serializer<A> serializer) {
+        return new Tee<A>(iter, count, capacity, Tee.Policy.SPILL,
+            Objects.requireNonNull(serializer), null).branches();
+    }
+
+    /** Split a stream into {@code count} streams which each produce all of
+     *  the source's items, as {@link #tee(Iterator, int, int, Tee.Policy)}.
+     *  Closing a branch stream releases its hold on the buffer; closing all of
+     *  them closes the source stream.
+     *
+     *  @param strm source stream, must not be null
+     *  @param count number of branches, at least 1
+     *  @param capacity number of items buffered before the policy applies
+     *  @param policy one of block, grow or fail; spilling needs a serializer
+     *  @return the branch streams
+     */
+    public static <A> List<Stream<A>> tee(Stream<A> strm, int count, int capacity,
+            Tee.Policy policy) {
+        Objects.requireNonNull(strm);
+
+        return teeStreams(new Tee<A>(strm.iterator(), count, capacity, policy, strm::close));
+    }
+
+    /** Split a stream into {@code count} streams which each produce all of
+     *  the source's items, as {@link #tee(Stream, int, int, Tee.Policy)},
+     *  spilling items past the buffer to a temporary file, so the branches
+     *  may be read one after another on one thread in bounded heap.
+     *
+     *  @param strm source stream, must not be null
+     *  @param count number of branches, at least 1
+     *  @param capacity number of items buffered in heap
+     *  @param serializer writes and reads items in the spill file
+     *  @return the branch streams
+     *  @see Tee.Policy#SPILL
+     */
+    public static <A> List<Stream<A>> tee(Stream<A> strm, int count, int capacity,
+            ExternalSort.Serializer<A> serializer) {
+        Objects.requireNonNull(strm);
+        Objects.requireNonNull(serializer);
+
+        return teeStreams(new Tee<A>(strm.iterator(), count, capacity, Tee.Policy.SPILL,
+            serializer, strm::close));
+    }
+
+    private static <A> List<Stream<A>> teeStreams(Tee<A> tee) {
+        final List<Stream<A>> result = new ArrayList<>(tee.branches().size());
+        for (Tee<A>.Branch branch: tee.branches())
+            result.add(asStream(branch).onClose(branch::close));
+        return result;
+    }
+
+    /** Split a stream of {@link Pair}s, such as made by
+     *  {@link #zip(Stream, Stream)}, into a stream of first items and a
+     *  stream of second items, buffered as {@link #tee(Stream, int, int, Tee.Policy)}.
+     *
+     *  @param strm stream of pairs, must not be null
+     *  @param capacity number of pairs buffered before the policy applies
+     *  @param policy one of block, grow or fail; spilling needs serializers
+     *  @return a pair of the first-item stream and the second-item stream
+     */
+    public static <A,B> Pair<Stream<A>,Stream<B>> unzip(Stream<Pair<A,B>> strm, int capacity,
+            Tee.Policy policy) {
+        final List<Stream<Pair<A,B>>> branches = tee(strm, 2, capacity, policy);
+        return new Pair<>(branches.get(0).map(Pair::_1), branches.get(1).map(Pair::_2));
+    }
+
+    /** Split a stream of {@link Pair}s into a stream of first items and a
+     *  stream of second items, as {@link #unzip(Stream, int, Tee.Policy)},
+     *  spilling pairs past the buffer to a temporary file, so that one
+     *  stream may be read to the end before the other in bounded heap.
+     *
+     *  @param strm stream of pairs, must not be null
+     *  @param capacity number of pairs buffered in heap
+     *  @param aSerializer writes and reads first items in the spill file
+     *  @param bSerializer writes and reads second items in the spill file
+     *  @return a pair of the first-item stream and the second-item stream
+     */
+    public static <A,B> Pair<Stream<A>,Stream<B>> unzip(Stream<Pair<A,B>> strm, int capacity,
+            ExternalSort.Serializer<A> aSerializer, ExternalSort.Serializer<B> bSerializer) {
+        Objects.requireNonNull(aSerializer);
+        Objects.requireNonNull(bSerializer);
+
+        final ExternalSort.Serializer<Pair<A,B>> pairSerializer = new ExternalSort.Serializer<Pair<A,B>>() {
+            @Override
+            public void write(DataOutputStream out, Pair<A,B> item) throws IOException {
+                aSerializer.write(out, item._1());
+                bSerializer.write(out, item._2());
+            }
+
+            @Override
+            public Pair<A,B> read(DataInputStream in) throws IOException {
+                final A a = aSerializer.read(in);
+                return new Pair<>(a, bSerializer.read(in));
+            }
+        };
+        final List<Stream<Pair<A,B>>> branches = tee(strm, 2, capacity, pairSerializer);
+        return new Pair<>(branches.get(0).map(Pair::_1), branches.get(1).map(Pair::_2));
+    }
+
+    /** Wrap an iterator as a sequential, ordered stream.
+     *
+     *  @param iter source iterator
+     *  @return a Stream over the iterator's items
+     */
+    static <A> Stream<A> asStream(Iterator<A> iter) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iter, Spliterator.ORDERED),
+            false);
+    }
+
+    /** Approximate {@link Stream#distinct()} in bounded memory, using a
+     *  {@link ScalableBloomFilter} rather than a set of every item seen.
+     *  Duplicates are always removed, but with probability up to
+     *  {@code falsePositiveRate} an item seen for the first time is wrongly
+     *  taken as a duplicate and dropped too. Items are hashed with
+     *  {@link Hashing#hashObject(Object)}, which has a full 64 bits only for
+     *  Strings, Longs and UUIDs. Other items are hashed from their 32-bit
+     *  {@code hashCode}, so beyond some {@code falsePositiveRate * 2^32}
+     *  distinct items, hash collisions drop more new items than the rate
+     *  allows; pass a 64-bit hasher to
+     *  {@link #distinctApproximate(Stream, long, double, ToLongFunction)} for those.
+     *  <p>
+     *  The filter is locked for each item, so the resulting stream may be
+     *  made parallel, though items then pass through the filter one at a time.
+     *
+     *  @param strm source stream, must not be null
+     *  @param expectedDistinct rough count of distinct items, for sizing
+     *  @param falsePositiveRate chance of dropping a new item
+     *  @return stream of the (approximately) distinct items, in encounter order
+     */
+    public static <T> Stream<T> distinctApproximate(Stream<T> strm, long expectedDistinct,
+            double falsePositiveRate) {
+        return distinctApproximate(strm, expectedDistinct, falsePositiveRate, Hashing::hashObject);
+    }
+
+    /** Approximate {@link Stream#distinct()} in bounded memory, as
+     *  {@link #distinctApproximate(Stream, long, double)}, with a given item hash.
+     *  The false-positive bound holds only as far as the hasher gives
+     *  distinct items distinct hashes.
+     *
+     *  @param strm source stream, must not be null
+     *  @param expectedDistinct rough count of distinct items, for sizing
+     *  @param falsePositiveRate chance of dropping a new item
+     *  @param hasher reduces an item to a well spread 64-bit hash
+     *  @return stream of the (approximately) distinct items, in encounter order
+     */
+    public static <T> Stream<T> distinctApproximate(Stream<T> strm, long expectedDistinct,
+            double falsePositiveRate, ToLongFunction<? super T> hasher) {
+        Objects.requireNonNull(strm);
+
+        final ScalableBloomFilter<T> filter =
+            new ScalableBloomFilter<>(expectedDistinct, falsePositiveRate, hasher);
+        // always locked, since the stream may be made parallel after this
+        return strm.filter(synchronizedPredicate(filter, filter::add));
+    }
+
+    /** Approximate distinct of a stream of UUIDs, hashing their two halves.
+     *
+     *  @param strm source stream, must not be null
+     *  @param expectedDistinct rough count of distinct items, for sizing
+     *  @param falsePositiveRate chance of dropping a new item
+     *  @return stream of the (approximately) distinct UUIDs, in encounter order
+     */
+    public static Stream<UUID> distinctUuidsApproximate(Stream<UUID> strm, long expectedDistinct,
+            double falsePositiveRate) {
+        return distinctApproximate(strm, expectedDistinct, falsePositiveRate, Hashing::hashUuid);
+    }
+
+    /** Approximate distinct of a stream of long ids, without boxing.
+     *
+     *  @param strm source stream, must not be null
+     *  @param expectedDistinct rough count of distinct ids, for sizing
+     *  @param falsePositiveRate chance of dropping a new id
+     *  @return stream of the (approximately) distinct ids, in encounter order
+     */
+    public static LongStream distinctApproximate(LongStream strm, long expectedDistinct,
+            double falsePositiveRate) {
+        Objects.requireNonNull(strm);
+
+        final ScalableBloomFilter<Long> filter =
+            new ScalableBloomFilter<>(expectedDistinct, falsePositiveRate);
+        // always locked, since the stream may be made parallel after this
+        return strm.filter(id -> {
+            synchronized (filter) {
+                return filter.addLong(id);
+            }
+        });
+    }
+
+    private static <T> Predicate<T> synchronizedPredicate(Object lock, Predicate<T> pred) {
+        return item -> {
+            synchronized (lock) {
+                return pred.test(item);
+            }
+        };
+    }
+
+    /** The {@code k} least items of a stream, least first, as
+     *  {@code sorted(cmp).limit(k)} but holding only k items at a time.
+     *  This is a terminal operation on {@code strm}.
+     *
+     *  @param strm source stream, may be parallel
+     *  @param k number of items to keep
+     *  @param cmp ordering of items
+     *  @return stream of at most k items
+     *  @see TopK#least(int, Comparator)
+     */
+    public static <T> Stream<T> least(Stream<T> strm, int k, Comparator<? super T> cmp) {
+        return strm.collect(TopK.least(k, cmp)).stream();
+    }
+
+    /** The {@code k} greatest items of a stream, greatest first, holding
+     *  only k items at a time. This is a terminal operation on {@code strm}.
+     *
+     *  @param strm source stream, may be parallel
+     *  @param k number of items to keep
+     *  @param cmp ordering of items
+     *  @return stream of at most k items
+     *  @see TopK#greatest(int, Comparator)
+     */
+    public static <T> Stream<T> greatest(Stream<T> strm, int k, Comparator<? super T> cmp) {
+        return strm.collect(TopK.greatest(k, cmp)).stream();
+    }
+
+    /** Sort a stream that may not fit in memory, as {@link Stream#sorted(Comparator)}
+     *  but holding at most {@code runSize} items at a time and spilling sorted
+     *  runs to temporary files through the serializer. The source is consumed
+     *  when the result is first used; the merge back is lazy. Closing the
+     *  result closes the source and deletes the temporary files, which are
+     *  also deleted when the result is read to the end.
+     *
+     *  @param strm source stream, must not be null
+     *  @param cmp ordering of items
+     *  @param runSize maximum number of items held in memory
+     *  @param serializer writes and reads items in the temporary files
+     *  @return sorted stream
+     *  @see ExternalSort
+     */
+    public static <T> Stream<T> externalSort(Stream<T> strm, Comparator<? super T> cmp,
+            int runSize, ExternalSort.Serializer<T> serializer) {
+        Objects.requireNonNull(strm);
+
+        final ExternalSort<T> sorter = new ExternalSort<>(cmp, runSize, serializer);
+        final AtomicReference<ExternalSort.SortedIterator<T>> sorted = new AtomicReference<>();
+        // the supplier runs at the terminal operation, so sorting starts only then
+        final Supplier<Spliterator<T>> sortOnUse = () -> {
+            sorted.set(sorter.sort(strm.iterator()));
+            return Spliterators.spliteratorUnknownSize(sorted.get(), Spliterator.ORDERED);
+        };
+        return StreamSupport.stream(sortOnUse, Spliterator.ORDERED, false)
+            .onClose(() -> {
+                if (sorted.get() != null)
+                    sorted.get().close();
+            })
+            .onClose(strm::close);
+    }
+
+    /** Create and return an iterator of the runs of adjacent items with equal
+     *  keys, each reduced by the downstream collector. For input sorted by key
+     *  this groups by key while holding only one group at a time.
+     *
+     *  @param iter source iterator, must not be null
+     *  @param keyFn key of an item
+     *  @param downstream reduces the items of one run
+     *  @return an iterator of {@link Pair}s of each run's key and result
+     */
+    public static <T,K,A,R> Iterator<Pair<K,R>> groupAdjacent(Iterator<T> iter,
+            Function<? super T,? extends K> keyFn, Collector<? super T,A,R> downstream) {
+        Objects.requireNonNull(iter);
+        Objects.requireNonNull(keyFn);
+        Objects.requireNonNull(downstream);
+
+        return new GroupIterator<T,K,A,R>(iter, keyFn, downstream);
+    }
+
+    /** Create and return a stream of the runs of adjacent items with equal
+     *  keys, each reduced by the downstream collector, such as
+     *  {@link Collectors#counting()} or {@link Collectors#summingLong}, so that
+     *  a run need not be held in memory at all. The stream is lazy: nothing is
+     *  read from the source, which may itself be costly to start, such as
+     *  {@link #externalSort}, until a terminal operation. Closing the stream
+     *  closes the source.
+     *
+     *  @param strm source stream, grouped or sorted by key, must not be null
+     *  @param keyFn key of an item
+     *  @param downstream reduces the items of one run
+     *  @return a stream of {@link Pair}s of each run's key and result
+     */
+    public static <T,K,A,R> Stream<Pair<K,R>> groupAdjacent(Stream<T> strm,
+            Function<? super T,? extends K> keyFn, Collector<? super T,A,R> downstream) {
+        Objects.requireNonNull(strm);
+        Objects.requireNonNull(keyFn);
+        Objects.requireNonNull(downstream);
+
+        // the supplier runs at the terminal operation, so reading starts only then
+        final Supplier<Spliterator<Pair<K,R>>> groupOnUse = () -> {
+            final Iterator<Pair<K,R>> groups = groupAdjacent(strm.iterator(), keyFn, downstream);
+            return Spliterators.spliteratorUnknownSize(groups, Spliterator.ORDERED);
+        };
+        return StreamSupport.stream(groupOnUse, Spliterator.ORDERED, false)
+            .onClose(strm::close);
+    }
+
+    /** Create and return a stream of the runs of adjacent items with equal
+     *  keys, as lists. For input sorted by key this replaces building a whole
+     *  {@code Map<K,List<V>>} with {@link Collections#addToMapOfLists}, holding
+     *  only the largest run in memory.
+     *
+     *  @param strm source stream, grouped or sorted by key, must not be null
+     *  @param keyFn key of an item
+     *  @return a stream of {@link Pair}s of each run's key and items
+     */
+    public static <T,K> Stream<Pair<K,List<T>>> groupAdjacent(Stream<T> strm,
+            Function<? super T,? extends K> keyFn) {
+        return groupAdjacent(strm, keyFn, Collectors.toList());
+    }
 }
@@ -0,0 +1,425 @@
+package com.wapitia.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+
+/** Splits one source iterator into several branch iterators, each of which
+ *  sees every item of the source, in order. Items are pulled from the source
+ *  lazily by whichever branch first needs them and are held in a shared ring
+ *  buffer only until the slowest open branch has consumed them, so memory is
+ *  proportional to how far apart the branches run rather than to the length
+ *  of the source.
+ *  <p>
+ *  When the leading branch would run more than the buffer's capacity ahead
+ *  of the slowest open branch, the {@link Policy} decides what happens.
+ *  A branch that will not be read further should be closed so that it no
+ *  longer holds items in the buffer.
+ *  <p>
+ *  Branches may be consumed on different threads; all access to the shared
+ *  buffer is synchronized. Failures to write or read a spill file are thrown
+ *  as {@link UncheckedIOException}s.
+ *
+ *  @param <A> item type
+ *  @see Streams#tee(Iterator, int, int, Policy)
+ */
+public class Tee<A> {
+
+    /** What to do when a branch would run further ahead of the slowest
+     *  open branch than the buffer can hold.
+     */
+    public enum Policy {
+        /** Wait until slower branches catch up. Branches must then be
+         *  consumed on different threads, or the leading branch waits forever.
+         */
+        BLOCK,
+        /** Write the items past the buffer to a temporary file, through an
+         *  {@link ExternalSort.Serializer}, and read them back from there as
+         *  the slower branches reach them. Heap use stays within the buffer,
+         *  so one branch may be read to the end before the others, on one
+         *  thread. The file is deleted once all open branches catch up.
+         */
+        SPILL,
+        /** Grow the in-heap buffer to hold the items, doubling it each time,
+         *  and shrink it again once the branches are close together. This
+         *  gives no memory bound: reading one branch to the end first holds
+         *  the whole source in heap.
+         */
+        GROW,
+        /** Throw an {@link IllegalStateException}. */
+        FAIL
+    }
+
+    private final Iterator<A> source;
+    private final Policy policy;
+    private final ExternalSort.Serializer<A> serializer;
+    private final Runnable onClose;
+    private final int initialCapacity;
+    private final List<Branch> branches;
+
+    // var, ring buffer holding source positions [minPosition(), spillStart or head)
+    private Object[] ring;
+    // var, count of items pulled from source so far
+    private long head;
+    // var, the item at head - 1, which the leading branch reads without the spill file
+    private Object lastPulled;
+    // var
+    private boolean exhausted;
+    // var
+    private boolean closed;
+
+    // var, while spilling, the file holding source positions [spillStart, head)
+    private Path spillPath;
+    private CountingOutputStream spillCount;
+    private DataOutputStream spillOut;
+    private long spillStart = -1L;
+    private boolean spillDirty;
+
+    /** Create a tee of {@code count} branches over a source iterator, with
+     *  any policy but {@link Policy#SPILL}.
+     *
+     *  @param source iterator to split, must not be null.
+     *  @param count number of branches, at least 1.
+     *  @param capacity number of items the buffer holds before the policy
+     *         applies, at least 1.
+     *  @param policy what to do when the buffer is full, must not be null.
+     *  @param onClose called once all branches are closed, may be null.
+     */
+    public Tee(Iterator<A> source, int count, int capacity, Policy policy, Runnable onClose) {
+        this(source, count, capacity, policy, null, onClose);
+    }
+
+    /** Create a tee of {@code count} branches over a source iterator.
+     *
+     *  @param source iterator to split, must not be null.
+     *  @param count number of branches, at least 1.
+     *  @param capacity number of items the buffer holds before the policy
+     *         applies, at least 1.
+     *  @param policy what to do when the buffer is full, must not be null.
+     *  @param serializer writes and reads items in the spill file, must not
+     *         be null for {@link Policy#SPILL}, otherwise unused.
+     *  @param onClose called once all branches are closed, may be null.
+     */
+    public Tee(Iterator<A> source, int count, int capacity, Policy policy,
+            ExternalSort.Serializer<A> serializer, Runnable onClose) {
+        this.source = Objects.requireNonNull(source);
+        this.policy = Objects.requireNonNull(policy);
+        if (count < 1)
+            throw new IllegalArgumentException("count must be at least 1");
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        if (policy == Policy.SPILL && serializer == null)
+            throw new IllegalArgumentException("the SPILL policy needs a serializer");
+        this.serializer = serializer;
+        this.onClose = onClose;
+        this.initialCapacity = capacity;
+        this.ring = new Object[capacity];
+        final List<Branch> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            list.add(new Branch());
+        this.branches = java.util.Collections.unmodifiableList(list);
+    }
+
+    /** @return the branch iterators, one per requested branch. */
+    public List<Branch> branches() {
+        return branches;
+    }
+
+    /** Current buffer capacity, which changes only under {@link Policy#GROW}.
+     *  @return number of items the buffer can hold.
+     */
+    public synchronized int capacity() {
+        return ring.length;
+    }
+
+    /** @return true while items are being held in a spill file. */
+    public synchronized boolean isSpilling() {
+        return spillOut != null;
+    }
+
+    /** One consumer's view of the source. */
+    public class Branch implements Iterator<A>, AutoCloseable {
+
+        // var, source position of this branch's next item
+        private long position;
+        // var
+        private boolean branchClosed;
+        // var, while spilling and at or past spillStart, the spill file offset
+        // of this branch's next item, and a reader open at it, if any
+        private long spillOffset;
+        private DataInputStream spillIn;
+
+        @Override
+        public boolean hasNext() {
+            synchronized (Tee.this) {
+                return !branchClosed && fill(position);
+            }
+        }
+
+        @Override
+        public A next() {
+            synchronized (Tee.this) {
+                if (branchClosed || !fill(position))
+                    throw new NoSuchElementException();
+                final long min = minPosition();
+                final A result = read(this);
+                position++;
+                release(min);
+                return result;
+            }
+        }
+
+        /** Stop reading this branch, releasing whatever it held in the
+         *  buffer. Closing the last open branch closes the tee.
+         */
+        @Override
+        public void close() {
+            synchronized (Tee.this) {
+                if (!branchClosed) {
+                    final long min = minPosition();
+                    branchClosed = true;
+                    closeReader(this);
+                    release(min);
+                    if (branches.stream().allMatch(b -> b.branchClosed))
+                        closeTee();
+                }
+            }
+        }
+    }
+
+    /** Ensure the item at source position {@code position} is buffered,
+     *  pulling from the source as needed. Caller holds the lock.
+     *  @return false if the source ends before that position.
+     */
+    private boolean fill(long position) {
+        while (position >= head && !exhausted) {
+            if (!source.hasNext()) {
+                exhausted = true;
+                break;
+            }
+            if (spillOut == null && head - minPosition() >= ring.length) {
+                // may wait, during which another branch may pull from source
+                makeRoom();
+                continue;
+            }
+            final A item = source.next();
+            if (spillOut != null)
+                spill(item);
+            else
+                ring[slot(head)] = item;
+            lastPulled = item;
+            head++;
+        }
+        return position < head;
+    }
+
+    /** The buffer is full; apply the policy. Caller holds the lock. */
+    private void makeRoom() {
+        switch (policy) {
+        case FAIL:
+            throw new IllegalStateException("Tee buffer of " + ring.length
+                + " items is full; a branch ran too far ahead of the others");
+        case SPILL:
+            startSpill();
+            break;
+        case GROW:
+            resize(ring.length * 2);
+            break;
+        case BLOCK:
+        default:
+            // wait once; the caller re-checks, as the awaited item may have
+            // been pulled by another branch meanwhile
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            break;
+        }
+    }
+
+    /** Read a branch's next item, which is buffered. Caller holds the lock. */
+    @SuppressWarnings("unchecked")
+    private A read(Branch branch) {
+        final A result;
+        if (spillOut == null || branch.position < spillStart)
+            result = (A) ring[slot(branch.position)];
+        else if (branch.position == head - 1) {
+            // the newest item, just pulled: no need to read it back
+            result = (A) lastPulled;
+            closeReader(branch);
+            branch.spillOffset = spillCount.count;
+        } else {
+            try {
+                if (spillDirty) {
+                    spillOut.flush();
+                    spillDirty = false;
+                }
+                if (branch.spillIn == null) {
+                    final FileInputStream in = new FileInputStream(spillPath.toFile());
+                    in.getChannel().position(branch.spillOffset);
+                    branch.spillIn = new DataInputStream(new BufferedInputStream(in));
+                }
+                result = serializer.read(branch.spillIn);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return result;
+    }
+
+    /** Start writing new items to a spill file. Caller holds the lock. */
+    private void startSpill() {
+        try {
+            spillPath = Files.createTempFile("tee", ".spill");
+            spillCount = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(spillPath)));
+            spillOut = new DataOutputStream(spillCount);
+        } catch (IOException e) {
+            endSpill();
+            throw new UncheckedIOException(e);
+        }
+        spillStart = head;
+        for (Branch b: branches)
+            b.spillOffset = 0L;
+    }
+
+    private void spill(A item) {
+        try {
+            serializer.write(spillOut, item);
+            spillDirty = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Close and delete the spill file, if any. Caller holds the lock. */
+    private void endSpill() {
+        for (Branch b: branches)
+            closeReader(b);
+        try {
+            if (spillOut != null)
+                spillOut.close();
+        } catch (IOException e) {
+            // best effort; the file is deleted anyway
+        } finally {
+            spillOut = null;
+            spillCount = null;
+            spillStart = -1L;
+            spillDirty = false;
+            try {
+                if (spillPath != null)
+                    Files.deleteIfExists(spillPath);
+            } catch (IOException e) {
+                // best effort
+            }
+            spillPath = null;
+        }
+    }
+
+    private static void closeReader(Tee<?>.Branch branch) {
+        if (branch.spillIn != null) {
+            try {
+                branch.spillIn.close();
+            } catch (IOException e) {
+                // best effort; nothing more is read from it
+            }
+            branch.spillIn = null;
+        }
+    }
+
+    /** Resize the ring, keeping each buffered item at its position. */
+    private void resize(int length) {
+        final Object[] old = ring;
+        final long end = spillOut != null ? spillStart : head;
+        ring = new Object[length];
+        for (long p = minPosition(); p < end; p++)
+            ring[slot(p)] = old[(int) (p % old.length)];
+    }
+
+    /** Clear slots no longer needed by any open branch, end a spill once
+     *  all open branches have caught up, shrink a grown ring once the
+     *  branches are close together, and wake any waiting branch.
+     *  Caller holds the lock.
+     *
+     *  @param oldMin minimum open position before the change.
+     */
+    private void release(long oldMin) {
+        final long min = minPosition();
+        final long end = spillOut != null ? spillStart : head;
+        for (long p = oldMin; p < min && p < end; p++)
+            ring[slot(p)] = null;
+        if (spillOut != null && min == head)
+            endSpill();
+        // halve at a quarter full, so that a steady skew does not thrash
+        while (ring.length > initialCapacity && head - min <= ring.length / 4)
+            resize(Math.max(initialCapacity, ring.length / 2));
+        if (min != oldMin)
+            notifyAll();
+    }
+
+    /** @return the source position of the slowest open branch, or
+     *  {@code head} when all are closed.
+     */
+    private long minPosition() {
+        long result = head;
+        for (Branch b: branches)
+            if (!b.branchClosed && b.position < result)
+                result = b.position;
+        return result;
+    }
+
+    private int slot(long position) {
+        return (int) (position % ring.length);
+    }
+
+    private void closeTee() {
+        if (!closed) {
+            closed = true;
+            endSpill();
+            Arrays.fill(ring, null);
+            lastPulled = null;
+            if (onClose != null)
+                onClose.run();
+        }
+    }
+
+    /** Counts the bytes written, as the spill file offset of the next item. */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        // var
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.wapitia.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collector;
+import java.util.stream.DoubleStream;
+import java.util.stream.LongStream;
+
+/** Collectors and functions keeping only the {@code k} least or greatest
+ *  items of a stream, in O(k) memory, rather than sorting and buffering the
+ *  whole stream as {@code sorted(cmp).limit(k)} does.
+ *  Each works from a bounded heap whose root is the worst item kept, so
+ *  most items are rejected with a single comparison.
+ *  <p>
+ *  The collectors merge per-thread heaps, so they run in parallel.
+ *  Unlike {@code sorted().limit()}, the choice among equal items at the
+ *  boundary is not stable.
+ *
+ *  <p>Usage:
+ *  <pre>{@code
+ *    List<Order> biggest = orders.parallelStream()
+ *        .collect(TopK.greatest(100, Comparator.comparing(Order::getTotal)));
+ *  }</pre>
+ */
+public class TopK {
+
+    /** Collect the {@code k} least items by the comparator, least first.
+     *  The same result as {@code sorted(cmp).limit(k)}, up to ties.
+     *
+     *  @param k number of items to keep, at least 0
+     *  @param cmp ordering of items
+     *  @return collector giving a sorted list of at most k items
+     */
+    public static <T> Collector<T,?,List<T>> least(int k, Comparator<? super T> cmp) {
+        checkK(k);
+        Objects.requireNonNull(cmp);
+        return Collector.<T,BoundedHeap<T>,List<T>>of(
+            () -> new BoundedHeap<T>(k, cmp),
+            BoundedHeap::offer,
+            BoundedHeap::merge,
+            BoundedHeap::toSortedList);
+    }
+
+    /** Collect the {@code k} greatest items by the comparator, greatest first.
+     *
+     *  @param k number of items to keep, at least 0
+     *  @param cmp ordering of items
+     *  @return collector giving a sorted list of at most k items
+     */
+    public static <T> Collector<T,?,List<T>> greatest(int k, Comparator<? super T> cmp) {
+        Objects.requireNonNull(cmp);
+        return least(k, java.util.Collections.reverseOrder(cmp));
+    }
+
+    /** The {@code k} least longs of a stream, which may be parallel.
+     *
+     *  @param strm source stream
+     *  @param k number of values to keep, at least 0
+     *  @return at most k values, ascending
+     */
+    public static long[] least(LongStream strm, int k) {
+        checkK(k);
+        return strm.collect(() -> new LongHeap(k, false), LongHeap::offer, LongHeap::merge)
+            .toSortedArray();
+    }
+
+    /** The {@code k} greatest longs of a stream, which may be parallel.
+     *
+     *  @param strm source stream
+     *  @param k number of values to keep, at least 0
+     *  @return at most k values, descending
+     */
+    public static long[] greatest(LongStream strm, int k) {
+        checkK(k);
+        return strm.collect(() -> new LongHeap(k, true), LongHeap::offer, LongHeap::merge)
+            .toSortedArray();
+    }
+
+    /** The {@code k} least doubles of a stream, which may be parallel,
+     *  ordered as {@link Double#compare(double, double)}.
+     *
+     *  @param strm source stream
+     *  @param k number of values to keep, at least 0
+     *  @return at most k values, ascending
+     */
+    public static double[] least(DoubleStream strm, int k) {
+        checkK(k);
+        return strm.collect(() -> new DoubleHeap(k, false), DoubleHeap::offer, DoubleHeap::merge)
+            .toSortedArray();
+    }
+
+    /** The {@code k} greatest doubles of a stream, which may be parallel,
+     *  ordered as {@link Double#compare(double, double)}.
+     *
+     *  @param strm source stream
+     *  @param k number of values to keep, at least 0
+     *  @return at most k values, descending
+     */
+    public static double[] greatest(DoubleStream strm, int k) {
+        checkK(k);
+        return strm.collect(() -> new DoubleHeap(k, true), DoubleHeap::offer, DoubleHeap::merge)
+            .toSortedArray();
+    }
+
+    private static void checkK(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k must not be negative");
+    }
+
+    /** Keeps the k least items by a comparator in a binary heap ordered
+     *  greatest at the root, so the root is the first item to give way.
+     */
+    static class BoundedHeap<T> {
+
+        private final int k;
+        private final Comparator<? super T> cmp;
+
+        // var
+        private Object[] heap;
+        private int size;
+
+        BoundedHeap(int k, Comparator<? super T> cmp) {
+            this.k = k;
+            this.cmp = cmp;
+            // grows on demand, so a large k costs nothing for short streams
+            this.heap = new Object[Math.min(k, 16)];
+        }
+
+        void offer(T item) {
+            if (size < k) {
+                if (size == heap.length)
+                    heap = Arrays.copyOf(heap, Math.min(k, size * 2));
+                heap[size] = item;
+                siftUp(size++);
+            } else if (k > 0 && cmp.compare(item, at(0)) < 0) {
+                heap[0] = item;
+                siftDown(0);
+            }
+        }
+
+        BoundedHeap<T> merge(BoundedHeap<T> other) {
+            for (int i = 0; i < other.size; i++)
+                offer(other.at(i));
+            return this;
+        }
+
+        List<T> toSortedList() {
+            @SuppressWarnings("unchecked")
+            final T[] items = (T[]) Arrays.copyOf(heap, size);
+            Arrays.sort(items, cmp);
+            return new ArrayList<>(Arrays.asList(items));
+        }
+
+        @SuppressWarnings("unchecked")
+        private T at(int i) {
+            return (T) heap[i];
+        }
+
+        private void siftUp(int index) {
+            int i = index;
+            final T item = at(i);
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (cmp.compare(item, at(parent)) <= 0)
+                    break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = item;
+        }
+
+        private void siftDown(int index) {
+            int i = index;
+            final T item = at(i);
+            final int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && cmp.compare(at(child + 1), at(child)) > 0)
+                    child++;
+                if (cmp.compare(item, at(child)) >= 0)
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = item;
+        }
+    }
+
+    /** {@link BoundedHeap} over primitive longs, keeping either the least
+     *  or the greatest values.
+     */
+    static class LongHeap {
+
+        private final int k;
+        private final boolean greatest;
+
+        // var, heap whose root is the kept value to give way first
+        private long[] heap;
+        private int size;
+
+        LongHeap(int k, boolean greatest) {
+            this.k = k;
+            this.greatest = greatest;
+            this.heap = new long[Math.min(k, 16)];
+        }
+
+        void offer(long value) {
+            if (size < k) {
+                if (size == heap.length)
+                    heap = Arrays.copyOf(heap, Math.min(k, size * 2));
+                heap[size] = value;
+                siftUp(size++);
+            } else if (k > 0 && before(value, heap[0])) {
+                heap[0] = value;
+                siftDown(0);
+            }
+        }
+
+        void merge(LongHeap other) {
+            for (int i = 0; i < other.size; i++)
+                offer(other.heap[i]);
+        }
+
+        long[] toSortedArray() {
+            final long[] result = Arrays.copyOf(heap, size);
+            Arrays.sort(result);
+            if (greatest)
+                reverse(result);
+            return result;
+        }
+
+        /** @return true if a is kept in preference to b */
+        private boolean before(long a, long b) {
+            return greatest ? a > b : a < b;
+        }
+
+        private void siftUp(int index) {
+            int i = index;
+            final long value = heap[i];
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (!before(heap[parent], value))
+                    break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        private void siftDown(int index) {
+            int i = index;
+            final long value = heap[i];
+            final int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && before(heap[child], heap[child + 1]))
+                    child++;
+                if (!before(value, heap[child]))
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = value;
+        }
+
+        private static void reverse(long[] a) {
+            for (int i = 0, j = a.length - 1; i < j; i++, j--) {
+                final long t = a[i];
+                a[i] = a[j];
+                a[j] = t;
+            }
+        }
+    }
+
+    /** {@link BoundedHeap} over primitive doubles, ordered as
+     *  {@link Double#compare(double, double)}.
+     */
+    static class DoubleHeap {
+
+        private final int k;
+        private final boolean greatest;
+
+        // var, heap whose root is the kept value to give way first
+        private double[] heap;
+        private int size;
+
+        DoubleHeap(int k, boolean greatest) {
+            this.k = k;
+            this.greatest = greatest;
+            this.heap = new double[Math.min(k, 16)];
+        }
+
+        void offer(double value) {
+            if (size < k) {
+                if (size == heap.length)
+                    heap = Arrays.copyOf(heap, Math.min(k, size * 2));
+                heap[size] = value;
+                siftUp(size++);
+            } else if (k > 0 && before(value, heap[0])) {
+                heap[0] = value;
+                siftDown(0);
+            }
+        }
+
+        void merge(DoubleHeap other) {
+            for (int i = 0; i < other.size; i++)
+                offer(other.heap[i]);
+        }
+
+        double[] toSortedArray() {
+            final double[] result = Arrays.copyOf(heap, size);
+            Arrays.sort(result);
+            if (greatest)
+                reverse(result);
+            return result;
+        }
+
+        /** @return true if a is kept in preference to b */
+        private boolean before(double a, double b) {
+            final int c = Double.compare(a, b);
+            return greatest ? c > 0 : c < 0;
+        }
+
+        private void siftUp(int index) {
+            int i = index;
+            final double value = heap[i];
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (!before(heap[parent], value))
+                    break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        private void siftDown(int index) {
+            int i = index;
+            final double value = heap[i];
+            final int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && before(heap[child], heap[child + 1]))
+                    child++;
+                if (!before(value, heap[child]))
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = value;
+        }
+
+        private static void reverse(double[] a) {
+            for (int i = 0, j = a.length - 1; i < j; i++, j--) {
+                final double t = a[i];
+                a[i] = a[j];
+                a[j] = t;
+            }
+        }
+    }
+
+    /** Factory class is not to be instantiated */
+    private TopK() {}
+}
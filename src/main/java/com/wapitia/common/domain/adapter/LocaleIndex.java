@@ -0,0 +1,250 @@
+package com.wapitia.common.domain.adapter;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Objects;
+
+import com.wapitia.common.BoundedCache;
+
+/** Precompiled index of supported Locales, for resolving an HTTP
+ *  {@code Accept-Language} header to the best supported Locale without
+ *  the parsing and allocation of {@link Locale#forLanguageTag(String)}
+ *  and {@link Locale#lookup(java.util.List, Collection)}.
+ *  <p>
+ *  Supported Locales are indexed by their language tags, as printed by
+ *  {@link LocaleAdapter#print(Locale)}, in a trie of subtags: language, then
+ *  script, region and variants. Extension and private use sections, which
+ *  start at a single character subtag such as "-u" or "-x", are left out,
+ *  just as {@link LocaleAdapter#trunc(String, int)} drops them first.
+ *  A language range from the header is matched by walking the trie as deep
+ *  as its subtags allow, which is the same as repeatedly truncating the range
+ *  until it matches. Where the range, or what is left of it, is itself a
+ *  supported tag, that Locale matches, as with {@code Locale.lookup}; so
+ *  "en-GB" and "en" both match "en" when "en" and "en-US" are supported.
+ *  Only where it stops short of any supported tag, such as "en" against
+ *  just "en-US", does the first supported Locale under it match.
+ *  <p>
+ *  Ranges are tried by descending quality, ties in header order.
+ *  A range of "*" matches the default Locale. Matching is case-insensitive
+ *  and accepts "_" as well as "-" between subtags.
+ *  Resolved headers are remembered in a small cache, since most requests
+ *  carry one of a few distinct headers. This class is thread-safe.
+ *
+ *  <p>Usage:
+ *  <pre>{@code
+ *    LocaleIndex index = new LocaleIndex(Arrays.asList(Locale.US, Locale.FRANCE), Locale.US, 256);
+ *    Locale locale = index.resolve(request.getHeader("Accept-Language"));
+ *  }</pre>
+ */
+public class LocaleIndex {
+
+    /** Headers longer than this are resolved but not cached. */
+    public static final int MaxCachedHeaderLength = 256;
+
+    private final Node root = new Node("");
+    private final Locale defaultLocale;
+    private final BoundedCache<String,Locale> cache;
+
+    /** Index the supported Locales.
+     *
+     *  @param supported supported Locales, most preferred first, must not be null
+     *  @param defaultLocale returned when nothing matches, must not be null
+     *  @param cacheSize number of distinct headers to remember, 0 for none
+     */
+    public LocaleIndex(Collection<Locale> supported, Locale defaultLocale, int cacheSize) {
+        this.defaultLocale = Objects.requireNonNull(defaultLocale);
+        this.cache = cacheSize > 0 ? new BoundedCache<>(cacheSize) : null;
+        for (Locale locale: supported)
+            add(locale);
+    }
+
+    /** @return the Locale returned when nothing matches */
+    public Locale defaultLocale() {
+        return defaultLocale;
+    }
+
+    /** Resolve an Accept-Language header, such as
+     *  {@code "fr-CH, fr;q=0.9, en;q=0.8, *;q=0.5"}, to the best supported Locale.
+     *
+     *  @param acceptLanguage the header value, may be null
+     *  @return the best supported Locale, or the default Locale if none match
+     */
+    public Locale resolve(String acceptLanguage) {
+        final Locale result;
+        if (acceptLanguage == null || acceptLanguage.isEmpty())
+            result = defaultLocale;
+        else if (cache == null || acceptLanguage.length() > MaxCachedHeaderLength)
+            result = match(acceptLanguage);
+        else
+            result = cache.getOrCreate(acceptLanguage, this::match);
+        return result;
+    }
+
+    /** Resolve an Accept-Language header without the cache.
+     *
+     *  @param acceptLanguage the header value, must not be null
+     *  @return the best supported Locale, or the default Locale if none match
+     */
+    public Locale match(CharSequence acceptLanguage) {
+        Locale best = null;
+        int bestQuality = 0;
+        final int length = acceptLanguage.length();
+        for (int start = 0; start < length; ) {
+            int end = start;
+            while (end < length && acceptLanguage.charAt(end) != ',')
+                end++;
+            int rangeEnd = start;
+            while (rangeEnd < end && acceptLanguage.charAt(rangeEnd) != ';')
+                rangeEnd++;
+            final int quality = quality(acceptLanguage, rangeEnd, end);
+            if (quality > bestQuality) {
+                final Locale found = matchRange(acceptLanguage, start, rangeEnd);
+                if (found != null) {
+                    best = found;
+                    bestQuality = quality;
+                }
+            }
+            start = end + 1;
+        }
+        return best != null ? best : defaultLocale;
+    }
+
+    /** Match one language range, {@code text[start,end)}, against the trie.
+     *  @return the matched Locale, or null if none.
+     */
+    private Locale matchRange(CharSequence text, int start, int end) {
+        final int from = skipSpace(text, start, end);
+        final int to = trimSpace(text, from, end);
+        if (to - from == 1 && text.charAt(from) == '*')
+            return defaultLocale;
+        Node node = root;
+        for (int s = from; s < to; ) {
+            int e = s;
+            while (e < to && text.charAt(e) != '-' && text.charAt(e) != '_')
+                e++;
+            // stop at extensions and private use, as trunc drops them first
+            final Node child = e - s > 1 ? node.child(text, s, e) : null;
+            if (child == null)
+                break;
+            node = child;
+            s = e + 1;
+        }
+        final Locale result;
+        if (node == root)
+            result = null;
+        else
+            // prefer the tag itself over anything supported under it
+            result = node.exact != null ? node.exact : node.best;
+        return result;
+    }
+
+    private void add(Locale locale) {
+        final String tag = LocaleAdapter.print(locale);
+        Node node = root;
+        for (String subtag: tag.split("-")) {
+            if (subtag.length() <= 1)
+                break;
+            node = node.childOrAdd(subtag.toLowerCase(Locale.ENGLISH));
+            if (node.best == null)
+                node.best = locale;
+        }
+        if (node != root && node.exact == null)
+            node.exact = locale;
+    }
+
+    /** Parse the quality of a range from its parameters {@code text[start,end)},
+     *  such as {@code ";q=0.8"}, in thousandths. No parameter is quality 1000.
+     */
+    private static int quality(CharSequence text, int start, int end) {
+        int i = start;
+        while (i < end && text.charAt(i) != 'q' && text.charAt(i) != 'Q')
+            i++;
+        // skip "q", spaces and "="
+        i++;
+        while (i < end && (text.charAt(i) == ' ' || text.charAt(i) == '='))
+            i++;
+        if (i >= end)
+            return 1000;
+        int result = 0;
+        int scale = 1000;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c == '.')
+                fraction = true;
+            else if (c >= '0' && c <= '9') {
+                if (!fraction)
+                    result = (c - '0') * 1000;
+                else if (scale > 1) {
+                    scale /= 10;
+                    result += (c - '0') * scale;
+                }
+            } else
+                break;
+        }
+        return Math.min(result, 1000);
+    }
+
+    private static int skipSpace(CharSequence text, int from, int to) {
+        int index = from;
+        while (index < to && Character.isWhitespace(text.charAt(index)))
+            index++;
+        return index;
+    }
+
+    private static int trimSpace(CharSequence text, int from, int to) {
+        int index = to;
+        while (index > from && Character.isWhitespace(text.charAt(index - 1)))
+            index--;
+        return index;
+    }
+
+    /** A subtag in the trie. */
+    private static class Node {
+
+        private static final Node[] NONE = {};
+
+        final String subtag;
+
+        // var, set only while the index is built
+        Node[] children = NONE;
+        // supported Locale whose tag ends here
+        Locale exact;
+        // first supported Locale whose tag starts with the path to here
+        Locale best;
+
+        Node(String subtag) {
+            this.subtag = subtag;
+        }
+
+        /** Find the child whose subtag equals {@code text[start,end)}, ignoring case. */
+        Node child(CharSequence text, int start, int end) {
+            final int length = end - start;
+            for (Node child: children)
+                if (child.subtag.length() == length && regionMatches(child.subtag, text, start))
+                    return child;
+            return null;
+        }
+
+        Node childOrAdd(String lowerSubtag) {
+            for (Node child: children)
+                if (child.subtag.equals(lowerSubtag))
+                    return child;
+            final Node result = new Node(lowerSubtag);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = result;
+            return result;
+        }
+
+        private static boolean regionMatches(String lowerSubtag, CharSequence text, int start) {
+            for (int i = 0; i < lowerSubtag.length(); i++) {
+                final char c = text.charAt(start + i);
+                final char lower = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+                if (lower != lowerSubtag.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
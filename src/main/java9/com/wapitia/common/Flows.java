@@ -0,0 +1,423 @@
+package com.wapitia.common;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/** Bridges between pull-based {@link Iterator}s, {@link Stream}s and
+ *  {@link BufferedIterator}s, and push-based {@link Flow.Publisher}s, honoring
+ *  the subscriber's demand in both directions so that neither side blocks
+ *  threads or buffers without bound.
+ *  <p>
+ *  This class needs java 9 and is built from {@code src/main/java9} by the
+ *  {@code java9} profile of the maven build.
+ */
+public class Flows {
+
+    /** Publish the items of an iterator, no faster than the subscriber
+     *  requests them. Items are pulled and delivered on the executor; use
+     *  {@code Runnable::run} to deliver on the thread calling
+     *  {@link Flow.Subscription#request(long)}. The publisher accepts a
+     *  single subscriber, since the iterator can only be read once.
+     *
+     *  @param iter source of items, which must not produce nulls
+     *  @param executor runs the delivery of items
+     *  @return single-use publisher
+     */
+    public static <T> Flow.Publisher<T> publisher(Iterator<? extends T> iter, Executor executor) {
+        return new IteratorPublisher<T>(iter, executor, null);
+    }
+
+    /** Publish the items of a stream, no faster than the subscriber requests
+     *  them, as {@link #publisher(Iterator, Executor)}. The stream is closed
+     *  when it completes, fails or the subscription is cancelled.
+     *
+     *  @param strm source of items, which must not produce nulls
+     *  @param executor runs the delivery of items
+     *  @return single-use publisher
+     */
+    public static <T> Flow.Publisher<T> publisher(Stream<? extends T> strm, Executor executor) {
+        return new IteratorPublisher<T>(strm.iterator(), executor, strm::close);
+    }
+
+    /** Publish the items of an iterator in lists of up to {@code batchSize}
+     *  items, each list one {@code onNext} signal and one unit of demand.
+     *
+     *  @param iter source of items
+     *  @param batchSize maximum number of items per list, at least 1
+     *  @param executor runs the delivery of items
+     *  @return single-use publisher of batches
+     */
+    public static <T> Flow.Publisher<List<T>> batchPublisher(Iterator<? extends T> iter, int batchSize,
+            Executor executor) {
+        return new IteratorPublisher<List<T>>(new BatchIterator<T>(iter, batchSize), executor, null);
+    }
+
+    /** Publish the items of a stream in lists of up to {@code batchSize}
+     *  items, as {@link #batchPublisher(Iterator, int, Executor)}. The stream is
+     *  closed when it completes, fails or the subscription is cancelled.
+     *
+     *  @param strm source of items
+     *  @param batchSize maximum number of items per list, at least 1
+     *  @param executor runs the delivery of items
+     *  @return single-use publisher of batches
+     */
+    public static <T> Flow.Publisher<List<T>> batchPublisher(Stream<? extends T> strm, int batchSize,
+            Executor executor) {
+        return new IteratorPublisher<List<T>>(new BatchIterator<T>(strm.iterator(), batchSize),
+            executor, strm::close);
+    }
+
+    /** Subscribe to a publisher and read its items as an iterator, keeping
+     *  at most {@code prefetch} items requested or buffered at a time.
+     *
+     *  @param publisher source of items
+     *  @param prefetch bound on buffered and requested items, at least 1
+     *  @return an iterator that blocks until the next item arrives
+     */
+    public static <T> SubscriberIterator<T> subscribe(Flow.Publisher<? extends T> publisher, int prefetch) {
+        final SubscriberIterator<T> result = new SubscriberIterator<>(prefetch);
+        publisher.subscribe(result);
+        return result;
+    }
+
+    /** Subscribe to a publisher and read its items as a {@link BufferedIterator},
+     *  as {@link #subscribe(Flow.Publisher, int)}. Since a BufferedIterator
+     *  always holds the next item, this waits for the first item to arrive.
+     *  A reader that stops early should close the result, which cancels the
+     *  subscription so that the publisher can release its source.
+     *
+     *  @param publisher source of items
+     *  @param prefetch bound on buffered and requested items, at least 1
+     *  @return a closeable buffered iterator over the published items
+     */
+    public static <T> BufferedSubscriberIterator<T> bufferedIterator(
+            Flow.Publisher<? extends T> publisher, int prefetch) {
+        return new BufferedSubscriberIterator<T>(subscribe(publisher, prefetch));
+    }
+
+    /** A single-use publisher of the items of an iterator. */
+    static class IteratorPublisher<T> implements Flow.Publisher<T> {
+
+        private final Iterator<? extends T> iter;
+        private final Executor executor;
+        private final Runnable onClose;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+
+        IteratorPublisher(Iterator<? extends T> iter, Executor executor, Runnable onClose) {
+            this.iter = Objects.requireNonNull(iter);
+            this.executor = Objects.requireNonNull(executor);
+            this.onClose = onClose;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super T> subscriber) {
+            Objects.requireNonNull(subscriber);
+            if (subscribed.compareAndSet(false, true))
+                subscriber.onSubscribe(new IteratorSubscription(subscriber));
+            else {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("This publisher allows only one subscriber"));
+            }
+        }
+
+        /** Delivers items as demand allows. Signals from request and cancel
+         *  are counted in {@code wip} so that only one thread drains at a time
+         *  and a request made from within onNext does not recurse.
+         */
+        private class IteratorSubscription implements Flow.Subscription, Runnable {
+
+            private final Flow.Subscriber<? super T> subscriber;
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger wip = new AtomicInteger();
+
+            private volatile boolean cancelled;
+            private volatile IllegalArgumentException badRequest;
+
+            // var, only touched by the draining thread
+            private boolean done;
+
+            IteratorSubscription(Flow.Subscriber<? super T> subscriber) {
+                this.subscriber = subscriber;
+            }
+
+            @Override
+            public void request(long n) {
+                if (n <= 0)
+                    badRequest = new IllegalArgumentException("request must be positive, was " + n);
+                else
+                    demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+                schedule();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                schedule();
+            }
+
+            private void schedule() {
+                if (wip.getAndIncrement() == 0) {
+                    try {
+                        executor.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        cancelled = true;
+                        close();
+                        subscriber.onError(e);
+                    }
+                }
+            }
+
+            @Override
+            public void run() {
+                int missed = 1;
+                do {
+                    drain();
+                    missed = wip.addAndGet(-missed);
+                } while (missed != 0);
+            }
+
+            private void drain() {
+                if (done)
+                    return;
+                if (cancelled) {
+                    close();
+                    return;
+                }
+                if (badRequest != null) {
+                    close();
+                    subscriber.onError(badRequest);
+                    return;
+                }
+                final long requested = demand.get();
+                long emitted = 0L;
+                try {
+                    while (emitted != requested && !cancelled && iter.hasNext()) {
+                        subscriber.onNext(iter.next());
+                        emitted++;
+                    }
+                    if (!cancelled && !iter.hasNext()) {
+                        close();
+                        subscriber.onComplete();
+                        return;
+                    }
+                } catch (RuntimeException | Error e) {
+                    close();
+                    subscriber.onError(e);
+                    return;
+                }
+                if (requested != Long.MAX_VALUE)
+                    demand.addAndGet(-emitted);
+            }
+
+            private void close() {
+                if (!done) {
+                    done = true;
+                    if (onClose != null)
+                        onClose.run();
+                }
+            }
+        }
+    }
+
+    /** Groups the items of an iterator into lists of up to batchSize items. */
+    static class BatchIterator<T> implements Iterator<List<T>> {
+
+        private final Iterator<? extends T> iter;
+        private final int batchSize;
+
+        BatchIterator(Iterator<? extends T> iter, int batchSize) {
+            if (batchSize < 1)
+                throw new IllegalArgumentException("batchSize must be at least 1");
+            this.iter = Objects.requireNonNull(iter);
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iter.hasNext();
+        }
+
+        @Override
+        public List<T> next() {
+            if (!iter.hasNext())
+                throw new NoSuchElementException();
+            final List<T> result = new ArrayList<>(batchSize);
+            while (result.size() < batchSize && iter.hasNext())
+                result.add(iter.next());
+            return result;
+        }
+    }
+
+    /** A subscriber read as a blocking iterator. It requests {@code prefetch}
+     *  items up front and requests more in batches as they are consumed,
+     *  so at most {@code prefetch} items are ever buffered.
+     *
+     *  @param <T> item type
+     */
+    public static class SubscriberIterator<T> implements Iterator<T>, Flow.Subscriber<T>, AutoCloseable {
+
+        private static final Object COMPLETE = new Object();
+
+        /** A failure signal in the queue. */
+        private static class Failure {
+            final Throwable error;
+
+            Failure(Throwable error) {
+                this.error = error;
+            }
+        }
+
+        private final int prefetch;
+        private final int replenish;
+        private final BlockingQueue<Object> queue;
+
+        private volatile Flow.Subscription subscription;
+
+        // var, consumer side
+        private Object pending;
+        private int consumed;
+        private boolean terminated;
+
+        SubscriberIterator(int prefetch) {
+            if (prefetch < 1)
+                throw new IllegalArgumentException("prefetch must be at least 1");
+            this.prefetch = prefetch;
+            this.replenish = Math.max(1, prefetch - (prefetch >> 2));
+            // room for every requested item plus the terminal signal
+            this.queue = new ArrayBlockingQueue<>(prefetch + 1);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            if (subscription != null) {
+                s.cancel();
+                return;
+            }
+            subscription = s;
+            s.request(prefetch);
+        }
+
+        @Override
+        public void onNext(T item) {
+            if (!queue.offer(Objects.requireNonNull(item))) {
+                subscription.cancel();
+                queue.offer(new Failure(new IllegalStateException(
+                    "publisher sent more items than requested")));
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            queue.offer(new Failure(error));
+        }
+
+        @Override
+        public void onComplete() {
+            queue.offer(COMPLETE);
+        }
+
+        /** Waits for the next item or the end of the publication.
+         *
+         *  @return true if there is a next item
+         *  @throws CompletionException if the publisher failed with a checked
+         *          exception or the wait is interrupted; unchecked failures are
+         *          rethrown as they are
+         */
+        @Override
+        public boolean hasNext() {
+            if (pending == null && !terminated) {
+                try {
+                    pending = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+                if (pending == COMPLETE) {
+                    pending = null;
+                    terminated = true;
+                } else if (pending instanceof Failure) {
+                    final Throwable error = ((Failure) pending).error;
+                    pending = null;
+                    terminated = true;
+                    if (error instanceof RuntimeException)
+                        throw (RuntimeException) error;
+                    if (error instanceof Error)
+                        throw (Error) error;
+                    throw new CompletionException(error);
+                }
+            }
+            return pending != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final T result = (T) pending;
+            pending = null;
+            if (++consumed == replenish) {
+                consumed = 0;
+                subscription.request(replenish);
+            }
+            return result;
+        }
+
+        /** Cancel the subscription and drop any buffered items. */
+        @Override
+        public void close() {
+            terminated = true;
+            pending = null;
+            final Flow.Subscription s = subscription;
+            if (s != null)
+                s.cancel();
+            queue.clear();
+        }
+    }
+
+    /** A {@link BufferedIterator} over a {@link SubscriberIterator}, which
+     *  can still be closed to cancel the subscription. After closing, only
+     *  the item already peeked, if any, remains to be read.
+     *
+     *  @param <T> item type
+     */
+    public static class BufferedSubscriberIterator<T> extends BufferedIterator<T> implements AutoCloseable {
+
+        private final SubscriberIterator<T> subscriber;
+
+        BufferedSubscriberIterator(SubscriberIterator<T> subscriber) {
+            super(subscriber);
+            this.subscriber = subscriber;
+        }
+
+        /** Cancel the subscription and drop any buffered items. */
+        @Override
+        public void close() {
+            subscriber.close();
+        }
+    }
+
+    /** Factory class is not to be instantiated */
+    private Flows() {}
+}
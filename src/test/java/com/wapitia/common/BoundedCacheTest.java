@@ -0,0 +1,154 @@
+package com.wapitia.common;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class BoundedCacheTest {
+
+    /** Least recently used entries are evicted and counted. */
+    @Test
+    public void testLruEviction() {
+        BoundedCache<Integer,String> cache = new BoundedCache<>(2);
+        Assert.assertEquals("v1", cache.getOrCreate(1, k -> "v" + k));
+        Assert.assertEquals("v2", cache.getOrCreate(2, k -> "v" + k));
+        Assert.assertEquals("v1", cache.getOrCreate(1, k -> "other"));
+        cache.getOrCreate(3, k -> "v" + k);
+        Assert.assertFalse(cache.getIfPresent(2).isPresent());
+        Assert.assertTrue(cache.getIfPresent(1).isPresent());
+        Assert.assertEquals(2, cache.size());
+        BoundedCache.Stats stats = cache.stats();
+        Assert.assertEquals(1, stats.evictionCount());
+        Assert.assertEquals(4, stats.missCount());
+        Assert.assertEquals(2, stats.hitCount());
+    }
+
+    /** Frequency-aware eviction keeps a popular key over a one-off key. */
+    @Test
+    public void testFrequencyEviction() {
+        BoundedCache<Integer,Integer> cache = new BoundedCache<>(
+            2, (k, v) -> 1L, BoundedCache.Eviction.FREQUENCY, null);
+        for (int i = 0; i < 5; i++) {
+            cache.getOrCreate(1, k -> k);
+            cache.getOrCreate(2, k -> k);
+        }
+        cache.getOrCreate(3, k -> k);
+        Assert.assertTrue(cache.getIfPresent(1).isPresent());
+        Assert.assertTrue(cache.getIfPresent(2).isPresent());
+        Assert.assertFalse(cache.getIfPresent(3).isPresent());
+    }
+
+    /** The frequency sketch is sized by entry count, not by weight, and its
+     *  packed counters saturate and age.
+     */
+    @Test
+    public void testFrequencySketch() {
+        BoundedCache<Integer,byte[]> cache = new BoundedCache<>(
+            1L << 30, (k, v) -> v.length, BoundedCache.Eviction.FREQUENCY, null);
+        for (int i = 0; i < 100; i++)
+            cache.getOrCreate(i, k -> new byte[1024]);
+        Assert.assertEquals(100, cache.size());
+
+        BoundedCache.FrequencySketch sketch = new BoundedCache.FrequencySketch();
+        Assert.assertEquals(16, sketch.width());
+        sketch.ensureCapacity(1000);
+        Assert.assertEquals(1024, sketch.width());
+        for (int i = 0; i < 20; i++)
+            sketch.increment("hot");
+        sketch.increment("warm");
+        Assert.assertEquals(15, sketch.frequency("hot"));
+        Assert.assertTrue(sketch.frequency("warm") >= 1);
+        for (int i = 0; sketch.frequency("hot") == 15; i++)
+            sketch.increment(i);
+        Assert.assertEquals(7, sketch.frequency("hot"));
+    }
+
+    /** Entries expire after write and failed loads are not cached. */
+    @Test
+    public void testExpiryAndFailure() {
+        AtomicLong now = new AtomicLong();
+        AtomicInteger loads = new AtomicInteger();
+        BoundedCache<String,Integer> cache = new BoundedCache<>(
+            100, (k, v) -> 1L, BoundedCache.Eviction.LRU, Duration.ofSeconds(10), now::get);
+        cache.getOrCreate("a", k -> loads.incrementAndGet());
+        now.addAndGet(Duration.ofSeconds(5).toNanos());
+        Assert.assertEquals(Integer.valueOf(1), cache.getOrCreate("a", k -> loads.incrementAndGet()));
+        now.addAndGet(Duration.ofSeconds(5).toNanos());
+        Assert.assertEquals(Integer.valueOf(2), cache.getOrCreate("a", k -> loads.incrementAndGet()));
+        try {
+            cache.getOrCreate("b", k -> { throw new IllegalStateException("no"); });
+            Assert.fail("expected failure");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertFalse(cache.getIfPresent("b").isPresent());
+    }
+
+    /** Concurrent misses on one key create the value once. */
+    @Test
+    public void testSingleFlight() throws Exception {
+        BoundedCache<String,Integer> cache = new BoundedCache<>(10);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cache.getOrCreate("key", k -> {
+                    CollectionsTest.sleep(50L);
+                    return loads.incrementAndGet();
+                });
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread: threads)
+            thread.join();
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(Integer.valueOf(1), cache.getIfPresent("key").get());
+    }
+
+    /** Hits from many threads are buffered without losing entries or counts,
+     *  and buffered hits still protect entries from LRU eviction.
+     */
+    @Test
+    public void testConcurrentHits() throws Exception {
+        BoundedCache<Integer,Integer> cache = new BoundedCache<>(100);
+        for (int i = 0; i < 100; i++)
+            cache.getOrCreate(i, k -> k);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100000; i++)
+                    cache.getOrCreate(i % 100, k -> -1);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread: threads)
+            thread.join();
+        Assert.assertEquals(800000, cache.stats().hitCount());
+        Assert.assertEquals(100, cache.size());
+        Assert.assertEquals(100, cache.weight());
+        Assert.assertEquals(Integer.valueOf(42), cache.getIfPresent(42).get());
+
+        cache.getOrCreate(0, k -> -1);
+        cache.getOrCreate(100, k -> k);
+        Assert.assertTrue(cache.getIfPresent(0).isPresent());
+        Assert.assertEquals(100, cache.size());
+    }
+}
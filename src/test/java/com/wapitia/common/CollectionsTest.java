@@ -1,8 +1,13 @@
 package com.wapitia.common;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -30,4 +35,65 @@ public class CollectionsTest {
 		Assert.assertNotNull(list129);
 		Assert.assertArrayEquals(new String[] {"One-Twenty-Nine A"}, list129.toArray());
 	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testListMapConcurrentKeepsOrder() {
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		List<Integer> source = Arrays.asList(5, 1, 4, 2, 3, 0, 6, 7);
+		List<String> result = Collections.listMapConcurrent(source, (Integer i) -> {
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			sleep(i * 5L);
+			inFlight.decrementAndGet();
+			return "v" + i;
+		}, 3);
+		Assert.assertEquals(Arrays.asList("v5", "v1", "v4", "v2", "v3", "v0", "v6", "v7"), result);
+		Assert.assertTrue(maxInFlight.get() <= 3);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testListMapConcurrentFailsFast() {
+		List<Integer> source = Arrays.asList(1, 2, 3, 4);
+		try {
+			Collections.listMapConcurrent(source, (Integer i) -> {
+				if (i == 2)
+					throw new IllegalStateException("boom");
+				return i;
+			}, 2);
+			Assert.fail("expected failure");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("boom", e.getMessage());
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testListMapConcurrentTimeout() {
+		List<Integer> source = Arrays.asList(1, 2);
+		try {
+			Collections.listMapConcurrent(source, (Integer i) -> {
+				sleep(5000L);
+				return i;
+			}, 2, Duration.ofMillis(50));
+			Assert.fail("expected timeout");
+		} catch (CompletionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 }
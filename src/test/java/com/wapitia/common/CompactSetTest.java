@@ -0,0 +1,134 @@
+package com.wapitia.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CompactSetTest {
+
+    /** Inline sets keep insertion order and reject duplicates. */
+    @Test
+    public void testInline() {
+        CompactSet<String> set = new CompactSet<>();
+        Assert.assertTrue(set.add("b"));
+        Assert.assertTrue(set.add("a"));
+        Assert.assertFalse(set.add("b"));
+        Assert.assertTrue(set.add(null));
+        Assert.assertEquals(3, set.size());
+        Assert.assertArrayEquals(new Object[] {"b", "a", null}, set.toArray());
+        Assert.assertTrue(set.contains(null));
+        Assert.assertTrue(set.remove("b"));
+        Assert.assertArrayEquals(new Object[] {"a", null}, set.toArray());
+        Assert.assertFalse(set.isHashed());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", null)), set);
+    }
+
+    /** Growing past the inline limit switches to hashing without loss. */
+    @Test
+    public void testPromotion() {
+        CompactSet<Integer> set = new CompactSet<>();
+        for (int i = 0; i < CompactSet.INLINE_MAX; i++)
+            set.add(i);
+        Assert.assertFalse(set.isHashed());
+        set.add(CompactSet.INLINE_MAX);
+        Assert.assertTrue(set.isHashed());
+        Assert.assertEquals(CompactSet.INLINE_MAX + 1, set.size());
+        for (int i = 0; i <= CompactSet.INLINE_MAX; i++)
+            Assert.assertTrue(set.contains(i));
+        set.clear();
+        Assert.assertFalse(set.isHashed());
+        Assert.assertTrue(set.isEmpty());
+    }
+
+    /** Iterator removal on inline storage. */
+    @Test
+    public void testIteratorRemove() {
+        CompactSet<Integer> set = new CompactSet<>(Arrays.asList(1, 2, 3, 4));
+        for (Iterator<Integer> iter = set.iterator(); iter.hasNext(); )
+            if (iter.next() % 2 == 0)
+                iter.remove();
+        Assert.assertArrayEquals(new Object[] {1, 3}, set.toArray());
+    }
+
+    /** CompactList grows in small steps and behaves as a List. */
+    @Test
+    public void testCompactList() {
+        List<String> list = new CompactList<>();
+        list.add("a");
+        list.add("c");
+        list.add(1, "b");
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), list);
+        Assert.assertEquals("b", list.remove(1));
+        Assert.assertEquals(Arrays.asList("a", "c"), list);
+        Assert.assertEquals(2, CompactList.grownCapacity(0));
+        Assert.assertEquals(8, CompactList.grownCapacity(4));
+        Assert.assertEquals(12, CompactList.grownCapacity(8));
+    }
+
+    /** addToSet installs a CompactSet when the getter has none. */
+    @Test
+    public void testAddToSet() {
+        final Object[] holder = new Object[1];
+        @SuppressWarnings("unchecked")
+        final Supplier<Set<String>> getter = () -> (Set<String>) holder[0];
+        Collections.addToSet("x", getter, s -> holder[0] = s);
+        Collections.addToSet("y", getter, s -> holder[0] = s);
+        Assert.assertTrue(holder[0] instanceof CompactSet);
+        Assert.assertEquals(2, getter.get().size());
+    }
+
+    /** Both inline and hashed sets, and lists, survive serialization and cloning. */
+    @Test
+    public void testSerializeAndClone() throws Exception {
+        CompactSet<String> inline = new CompactSet<>(Arrays.asList("a", "b", null));
+        CompactSet<Integer> hashed = new CompactSet<>();
+        for (int i = 0; i <= CompactSet.INLINE_MAX; i++)
+            hashed.add(i);
+        CompactList<String> list = new CompactList<>(Arrays.asList("x", null, "y"));
+
+        CompactSet<String> inlineCopy = roundTrip(inline);
+        Assert.assertEquals(inline, inlineCopy);
+        Assert.assertArrayEquals(inline.toArray(), inlineCopy.toArray());
+        inlineCopy.add("c");
+        Assert.assertEquals(4, inlineCopy.size());
+        CompactSet<Integer> hashedCopy = roundTrip(hashed);
+        Assert.assertTrue(hashedCopy.isHashed());
+        Assert.assertEquals(hashed, hashedCopy);
+        Assert.assertEquals(list, roundTrip(list));
+
+        CompactSet<String> inlineClone = inline.clone();
+        inlineClone.remove("a");
+        Assert.assertTrue(inline.contains("a"));
+        CompactSet<Integer> hashedClone = hashed.clone();
+        hashedClone.add(-1);
+        Assert.assertFalse(hashed.contains(-1));
+        CompactList<String> listClone = list.clone();
+        listClone.add("z");
+        Assert.assertEquals(3, list.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T value) throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.wapitia.common;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class EnumLookupTest {
+
+    enum ScopeChoice {
+        CodeOnly,
+        HeaderOnly,
+        All;
+
+        static EnumLookup<ScopeChoice> lookup = new EnumLookup<>(values());
+    }
+
+    /** Delimited names parse into sets, ignoring blanks and whitespace. */
+    @Test
+    public void testParseSet() {
+        Assert.assertEquals(Optional.of(EnumSet.of(ScopeChoice.CodeOnly, ScopeChoice.All)),
+            ScopeChoice.lookup.parseSet(" All ,CodeOnly"));
+        Assert.assertEquals(Optional.of(EnumSet.of(ScopeChoice.HeaderOnly, ScopeChoice.All)),
+            ScopeChoice.lookup.parseSet(new StringBuilder("HeaderOnly||all"), true));
+        Assert.assertEquals(Optional.of(EnumSet.noneOf(ScopeChoice.class)),
+            ScopeChoice.lookup.parseSet(""));
+        Assert.assertEquals(Optional.empty(), ScopeChoice.lookup.parseSet("CodeOnly,Bogus"));
+        Assert.assertEquals(Optional.empty(), ScopeChoice.lookup.parseSet("codeonly"));
+    }
+
+    /** Masks round trip through parse, format and EnumSet. */
+    @Test
+    public void testMask() {
+        OptionalLong mask = ScopeChoice.lookup.parseMask("All|CodeOnly", false);
+        Assert.assertEquals(OptionalLong.of(0b101L), mask);
+        Assert.assertEquals("CodeOnly,All", ScopeChoice.lookup.format(mask.getAsLong(), ','));
+        Assert.assertEquals(EnumSet.of(ScopeChoice.CodeOnly, ScopeChoice.All),
+            ScopeChoice.lookup.fromMask(mask.getAsLong()));
+        Assert.assertEquals(0b110L, ScopeChoice.lookup.toMask(
+            EnumSet.of(ScopeChoice.HeaderOnly, ScopeChoice.All)));
+        Assert.assertEquals("", ScopeChoice.lookup.format(0L, '|'));
+        Assert.assertEquals("HeaderOnly|All", ScopeChoice.lookup.format(
+            new HashSet<>(Arrays.asList(ScopeChoice.All, ScopeChoice.HeaderOnly)), '|'));
+    }
+}
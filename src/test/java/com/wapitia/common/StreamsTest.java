@@ -0,0 +1,279 @@
+package com.wapitia.common;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class StreamsTest {
+
+    /** Both branches see every item; growing follows the skew, then shrinks back. */
+    @Test
+    public void testTeeGrow() {
+        Tee<Integer> tee = new Tee<>(IntStream.range(0, 100).iterator(), 2, 4, Tee.Policy.GROW, null);
+        Iterator<Integer> a = tee.branches().get(0);
+        Iterator<Integer> b = tee.branches().get(1);
+        for (int i = 0; i < 10; i++)
+            Assert.assertEquals(Integer.valueOf(i), a.next());
+        Assert.assertEquals(16, tee.capacity());
+        int count = 0;
+        while (b.hasNext()) {
+            Assert.assertEquals(Integer.valueOf(count++), b.next());
+            if (a.hasNext())
+                a.next();
+        }
+        Assert.assertEquals(100, count);
+        Assert.assertEquals(4, tee.capacity());
+    }
+
+    /** Spilling lets one branch be read to the end before the others on one
+     *  thread, in a fixed buffer, and deletes the spill file once caught up.
+     */
+    @Test
+    public void testTeeSpill() {
+        int spillFilesBefore = countSpillFiles();
+        List<Tee<Long>.Branch> branches = Streams.tee(
+            LongStream.range(0, 1000).iterator(), 3, 4, ExternalSort.longSerializer());
+        Tee<Long>.Branch a = branches.get(0);
+        Tee<Long>.Branch b = branches.get(1);
+        Tee<Long>.Branch c = branches.get(2);
+        for (long i = 0; i < 500; i++)
+            Assert.assertEquals(Long.valueOf(i), a.next());
+        Assert.assertEquals(spillFilesBefore + 1, countSpillFiles());
+        for (long i = 0; i < 200; i++)
+            Assert.assertEquals(Long.valueOf(i), b.next());
+        // c overtakes a, then all three interleave
+        for (long i = 0; i < 700; i++)
+            Assert.assertEquals(Long.valueOf(i), c.next());
+        for (long i = 200; i < 1000; i++) {
+            Assert.assertEquals(Long.valueOf(i), b.next());
+            if (i >= 500)
+                Assert.assertEquals(Long.valueOf(i), a.next());
+            if (i >= 700)
+                Assert.assertEquals(Long.valueOf(i), c.next());
+        }
+        Assert.assertFalse(a.hasNext() || b.hasNext() || c.hasNext());
+        Assert.assertEquals(spillFilesBefore, countSpillFiles());
+
+        Pair<Stream<String>,Stream<Long>> unzipped = Streams.unzip(
+            LongStream.range(0, 100).mapToObj(i -> new Pair<>("s" + i, i)), 2,
+            ExternalSort.stringSerializer(), ExternalSort.longSerializer());
+        Assert.assertEquals(4950L, unzipped._2().mapToLong(i -> i).sum());
+        Assert.assertEquals("s99", unzipped._1().reduce((x, y) -> y).get());
+        Assert.assertEquals(spillFilesBefore, countSpillFiles());
+    }
+
+    static int countSpillFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir"))
+            .listFiles((dir, name) -> name.startsWith("tee") && name.endsWith(".spill"));
+        return files == null ? 0 : files.length;
+    }
+
+    /** The fail policy refuses to run past the buffer. */
+    @Test
+    public void testTeeFail() {
+        List<Tee<String>.Branch> branches = Streams.tee(
+            Arrays.asList("a", "b", "c").iterator(), 2, 2, Tee.Policy.FAIL);
+        branches.get(0).next();
+        branches.get(0).next();
+        try {
+            branches.get(0).next();
+            Assert.fail("expected full buffer");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // closing the lagging branch frees the leader
+        branches.get(1).close();
+        Assert.assertEquals("c", branches.get(0).next());
+    }
+
+    /** Blocking branches consumed on separate threads. */
+    @Test
+    public void testTeeBlock() throws Exception {
+        List<Stream<Integer>> streams = Streams.tee(
+            IntStream.range(0, 10000).boxed(), 2, 8, Tee.Policy.BLOCK);
+        final long[] sums = new long[2];
+        Thread other = new Thread(() -> sums[1] = streams.get(1).mapToLong(i -> i).sum());
+        other.start();
+        sums[0] = streams.get(0).mapToLong(i -> i).sum();
+        other.join();
+        Assert.assertEquals(49995000L, sums[0]);
+        Assert.assertEquals(49995000L, sums[1]);
+    }
+
+    /** Unzip reverses zip. */
+    @Test
+    public void testUnzip() {
+        Pair<Stream<String>,Stream<Integer>> unzipped = Streams.unzip(
+            Streams.zip(Stream.of("a", "b", "c"), Stream.of(1, 2, 3)), 4, Tee.Policy.GROW);
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), unzipped._1().collect(Collectors.toList()));
+        Assert.assertEquals(Arrays.asList(1, 2, 3), unzipped._2().collect(Collectors.toList()));
+    }
+
+    /** Approximate distinct drops all duplicates and few new items. */
+    @Test
+    public void testDistinctApproximate() {
+        long kept = Streams.distinctApproximate(
+            LongStream.range(0, 200000).map(i -> i % 100000), 1000, 0.01).count();
+        Assert.assertTrue(kept <= 100000 && kept > 99000);
+
+        List<UUID> uuids = Arrays.asList(new UUID(1, 2), new UUID(3, 4), new UUID(1, 2));
+        Assert.assertEquals(Arrays.asList(new UUID(1, 2), new UUID(3, 4)),
+            Streams.distinctUuidsApproximate(uuids.stream(), 10, 0.01).collect(Collectors.toList()));
+    }
+
+    /** Approximate distinct stays correct when made parallel after the operator. */
+    @Test
+    public void testDistinctApproximateParallel() {
+        long kept = Streams.distinctApproximate(LongStream.range(0, 500000).boxed(), 1000, 0.01)
+            .parallel().count();
+        Assert.assertTrue(kept <= 500000 && kept > 495000);
+        kept = Streams.distinctApproximate(LongStream.range(0, 500000).map(i -> i % 250000), 1000, 0.01)
+            .parallel().count();
+        Assert.assertTrue(kept <= 250000 && kept > 247500);
+    }
+
+    /** Strings whose 32-bit hashCodes collide get distinct 64-bit hashes. */
+    @Test
+    public void testHashString() {
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        Assert.assertNotEquals(Hashing.hashString("Aa"), Hashing.hashString("BB"));
+        Assert.assertEquals(Hashing.hashString("Aa"), Hashing.hashObject("Aa"));
+        Assert.assertNotEquals(Hashing.hashString(""), Hashing.hashString("\u0000"));
+    }
+
+    /** HyperLogLog estimates stay near the true count, also in parallel. */
+    @Test
+    public void testHyperLogLog() {
+        long estimate = LongStream.range(0, 1000000).parallel().boxed()
+            .collect(HyperLogLog.counting(HyperLogLog.DEFAULT_PRECISION));
+        Assert.assertEquals(1000000.0, estimate, 1000000 * 0.03);
+        Assert.assertEquals(1000.0, HyperLogLog.countDistinct(
+            LongStream.range(0, 5000).map(i -> i % 1000).parallel(), 12), 1000 * 0.05);
+        Assert.assertEquals(0L, new HyperLogLog(4).estimate());
+    }
+
+    /** Top-K agrees with sorting then limiting, also in parallel. */
+    @Test
+    public void testTopK() {
+        List<Integer> source = IntStream.range(0, 10000).map(i -> (i * 7919) % 10007).boxed()
+            .collect(Collectors.toList());
+        Assert.assertEquals(
+            source.stream().sorted().limit(5).collect(Collectors.toList()),
+            Streams.least(source.parallelStream(), 5, Comparator.naturalOrder()).collect(Collectors.toList()));
+        Assert.assertEquals(
+            source.stream().sorted(Comparator.reverseOrder()).limit(5).collect(Collectors.toList()),
+            source.parallelStream().collect(TopK.greatest(5, Comparator.<Integer>naturalOrder())));
+        Assert.assertArrayEquals(new long[] {Long.MAX_VALUE, 9, 8},
+            TopK.greatest(LongStream.of(3, 9, Long.MIN_VALUE, 8, Long.MAX_VALUE, 1), 3));
+        Assert.assertArrayEquals(new long[] {Long.MIN_VALUE, 1},
+            TopK.least(LongStream.of(3, 9, Long.MIN_VALUE, 8, Long.MAX_VALUE, 1).parallel(), 2));
+        Assert.assertArrayEquals(new double[] {-1.5, 0.0},
+            TopK.least(DoubleStream.of(2.0, 0.0, 7.0, -1.5), 2), 0.0);
+        Assert.assertEquals(0, TopK.least(LongStream.of(1, 2), 0).length);
+        Assert.assertEquals(2, TopK.greatest(DoubleStream.of(1, 2), 5).length);
+    }
+
+    /** External sort spills runs, merges them in order and deletes its files. */
+    @Test
+    public void testExternalSort() {
+        List<Long> source = new Random(42).longs(5000).boxed().collect(Collectors.toList());
+        List<Long> expected = source.stream().sorted().collect(Collectors.toList());
+        int tempFilesBefore = countRunFiles();
+        try (Stream<Long> sorted = Streams.externalSort(source.stream(), Comparator.naturalOrder(),
+                37, ExternalSort.longSerializer())) {
+            Assert.assertEquals(expected, sorted.collect(Collectors.toList()));
+        }
+        Assert.assertEquals(tempFilesBefore, countRunFiles());
+
+        ExternalSort.SortedIterator<String> iter = new ExternalSort<String>(
+            Comparator.naturalOrder(), 2, ExternalSort.stringSerializer())
+            .sort(Arrays.asList("d", "b", "\u00e9", "a", "c").iterator());
+        Assert.assertEquals("a", iter.next());
+        iter.close();
+        Assert.assertFalse(iter.hasNext());
+        Assert.assertEquals(tempFilesBefore, countRunFiles());
+    }
+
+    /** External sort is stable across runs and merge passes, as sorted() is. */
+    @Test
+    public void testExternalSortStable() {
+        // keys 0..9 in a scrambled order, each tagged with its source position
+        List<String> source = IntStream.range(0, 2000)
+            .mapToObj(i -> (i * 7) % 10 + ":" + i).collect(Collectors.toList());
+        Comparator<String> byKey = Comparator.comparing(item -> item.substring(0, item.indexOf(':')));
+        List<String> expected = source.stream().sorted(byKey).collect(Collectors.toList());
+        // 2000 / 3 runs forces more than one merge pass
+        try (Stream<String> sorted = Streams.externalSort(source.stream(), byKey, 3,
+                ExternalSort.stringSerializer())) {
+            Assert.assertEquals(expected, sorted.collect(Collectors.toList()));
+        }
+    }
+
+    static int countRunFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir"))
+            .listFiles((dir, name) -> name.startsWith("extsort") && name.endsWith(".run"));
+        return files == null ? 0 : files.length;
+    }
+
+    /** Null items and null keys group like any other, as addToMapOfLists allows. */
+    @Test
+    public void testGroupAdjacentNulls() {
+        Assert.assertEquals(1, Streams.groupAdjacent(Stream.of("a", null), x -> 1).count());
+        List<Pair<String,List<String>>> groups = Streams.groupAdjacent(
+            Stream.of(null, null, "a", null), (String x) -> x).collect(Collectors.toList());
+        Assert.assertEquals(3, groups.size());
+        Assert.assertNull(groups.get(0)._1());
+        Assert.assertEquals(Arrays.asList(null, null), groups.get(0)._2());
+        Assert.assertEquals("a", groups.get(1)._1());
+        Assert.assertEquals(Arrays.asList((String) null), groups.get(2)._2());
+    }
+
+    /** Grouping reads nothing from the source until a terminal operation. */
+    @Test
+    public void testGroupAdjacentLazy() {
+        int[] pulled = new int[1];
+        Stream<Pair<Integer,Long>> groups = Streams.groupAdjacent(
+            Stream.of("a", "b", "cc").peek(item -> pulled[0]++), String::length, Collectors.counting());
+        Assert.assertEquals(0, pulled[0]);
+        Assert.assertEquals(2, groups.count());
+        Assert.assertEquals(3, pulled[0]);
+    }
+
+    /** Adjacent runs of equal keys become groups; a key may recur later. */
+    @Test
+    public void testGroupAdjacent() {
+        List<Pair<Integer,List<String>>> groups = Streams.groupAdjacent(
+            Stream.of("a", "b", "cc", "dd", "e", "fff"), String::length)
+            .collect(Collectors.toList());
+        Assert.assertEquals(4, groups.size());
+        Assert.assertEquals(Integer.valueOf(1), groups.get(0)._1());
+        Assert.assertEquals(Arrays.asList("a", "b"), groups.get(0)._2());
+        Assert.assertEquals(Arrays.asList("cc", "dd"), groups.get(1)._2());
+        Assert.assertEquals(Arrays.asList("e"), groups.get(2)._2());
+        Assert.assertEquals(Integer.valueOf(3), groups.get(3)._1());
+
+        Iterator<Pair<Long,Long>> counts = Streams.groupAdjacent(
+            LongStream.range(0, 10).iterator(), (Long i) -> i / 4, Collectors.counting());
+        Assert.assertEquals(Long.valueOf(4), counts.next()._2());
+        Assert.assertEquals(Long.valueOf(4), counts.next()._2());
+        Pair<Long,Long> last = counts.next();
+        Assert.assertEquals(Long.valueOf(2), last._1());
+        Assert.assertEquals(Long.valueOf(2), last._2());
+        Assert.assertFalse(counts.hasNext());
+    }
+}
@@ -0,0 +1,68 @@
+package com.wapitia.common.domain.adapter;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class LocaleIndexTest {
+
+    private final LocaleIndex index = new LocaleIndex(Arrays.asList(
+            Locale.forLanguageTag("en-US"),
+            Locale.forLanguageTag("en-GB"),
+            Locale.forLanguageTag("fr"),
+            Locale.forLanguageTag("zh-Hant-TW"),
+            Locale.forLanguageTag("de-DE-1996")),
+        Locale.forLanguageTag("en-US"), 16);
+
+    /** Exact, truncated and prefix matches, by quality. */
+    @Test
+    public void testResolve() {
+        assertResolves("en-GB", "en-gb");
+        assertResolves("fr", "fr-CH, fr;q=0.9, en;q=0.8");
+        assertResolves("en-US", "en");
+        assertResolves("en-GB", "de;q=0.2, en_GB;q=0.7");
+        assertResolves("zh-Hant-TW", "zh-Hant-HK");
+        assertResolves("zh-Hant-TW", "zh-Hant-TW-x-private");
+        assertResolves("de-DE-1996", "de-de");
+        assertResolves("fr", "fr;q=0.5, en;q=0");
+        assertResolves("en-US", "ja, *;q=0.1");
+        assertResolves("en-US", "ja");
+        assertResolves("en-US", "");
+        assertResolves("en-US", null);
+    }
+
+    /** A supported parent tag wins over a supported child listed before it,
+     *  both for an exact range and a truncated one, as with Locale.lookup.
+     */
+    @Test
+    public void testParentAndChild() {
+        LocaleIndex nested = new LocaleIndex(Arrays.asList(
+                Locale.forLanguageTag("en-US"),
+                Locale.forLanguageTag("en"),
+                Locale.forLanguageTag("de-DE-1996"),
+                Locale.forLanguageTag("de-DE")),
+            Locale.forLanguageTag("fr"), 0);
+        Assert.assertEquals("en", nested.resolve("en").toLanguageTag());
+        Assert.assertEquals("en", nested.resolve("en-GB").toLanguageTag());
+        Assert.assertEquals("en-US", nested.resolve("en-US").toLanguageTag());
+        Assert.assertEquals("de-DE", nested.resolve("de-DE").toLanguageTag());
+        Assert.assertEquals("de-DE", nested.resolve("de-DE-1901").toLanguageTag());
+        Assert.assertEquals("de-DE-1996", nested.resolve("de").toLanguageTag());
+    }
+
+    /** Repeated headers come back the same from the cache. */
+    @Test
+    public void testCached() {
+        for (int i = 0; i < 3; i++)
+            assertResolves("fr", "fr-FR,fr;q=0.9");
+    }
+
+    void assertResolves(String expectedTag, String header) {
+        Assert.assertEquals(header, expectedTag, index.resolve(header).toLanguageTag());
+    }
+}
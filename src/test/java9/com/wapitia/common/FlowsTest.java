@@ -0,0 +1,98 @@
+package com.wapitia.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class FlowsTest {
+
+    /** A stream published and read back as an iterator, on another thread. */
+    @Test
+    public void testRoundTrip() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Flows.SubscriberIterator<Integer> iter = Flows.subscribe(
+                Flows.publisher(IntStream.range(0, 1000).boxed(), executor), 16);
+            int expected = 0;
+            while (iter.hasNext())
+                Assert.assertEquals(Integer.valueOf(expected++), iter.next());
+            Assert.assertEquals(1000, expected);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /** The publisher never sends more than was requested. */
+    @Test
+    public void testDemand() {
+        List<Integer> received = new ArrayList<>();
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        boolean[] completed = new boolean[1];
+        Flows.publisher(Arrays.asList(1, 2, 3, 4, 5).iterator(), Runnable::run)
+            .subscribe(new Flow.Subscriber<Integer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    subscription[0] = s;
+                }
+
+                @Override
+                public void onNext(Integer item) {
+                    received.add(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    Assert.fail(throwable.toString());
+                }
+
+                @Override
+                public void onComplete() {
+                    completed[0] = true;
+                }
+            });
+        Assert.assertTrue(received.isEmpty());
+        subscription[0].request(2);
+        Assert.assertEquals(Arrays.asList(1, 2), received);
+        subscription[0].request(10);
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5), received);
+        Assert.assertTrue(completed[0]);
+    }
+
+    /** Batches group items; closing the stream happens on completion. */
+    @Test
+    public void testBatches() {
+        boolean[] closed = new boolean[1];
+        Stream<Integer> strm = Stream.of(1, 2, 3, 4, 5).onClose(() -> closed[0] = true);
+        BufferedIterator<List<Integer>> iter = Flows.bufferedIterator(
+            Flows.batchPublisher(strm, 2, Runnable::run), 1);
+        Assert.assertEquals(Arrays.asList(1, 2), iter.peek().get());
+        List<List<Integer>> batches = new ArrayList<>();
+        iter.forEachRemaining(batches::add);
+        Assert.assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Arrays.asList(5)), batches);
+        Assert.assertTrue(closed[0]);
+    }
+
+    /** Closing a buffered iterator early cancels the subscription and closes the stream. */
+    @Test
+    public void testBufferedIteratorClose() {
+        boolean[] closed = new boolean[1];
+        Stream<Integer> strm = IntStream.range(0, 1000).boxed().onClose(() -> closed[0] = true);
+        try (Flows.BufferedSubscriberIterator<Integer> iter = Flows.bufferedIterator(
+                Flows.publisher(strm, Runnable::run), 4)) {
+            Assert.assertEquals(Integer.valueOf(0), iter.next());
+            Assert.assertFalse(closed[0]);
+        }
+        Assert.assertTrue(closed[0]);
+    }
+}